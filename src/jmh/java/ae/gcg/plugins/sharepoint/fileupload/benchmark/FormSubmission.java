@@ -0,0 +1,59 @@
+package ae.gcg.plugins.sharepoint.fileupload.benchmark;
+
+import ae.gcg.plugins.sharepoint.fileupload.SharePointFileUpload;
+import org.joget.apps.form.model.Form;
+import org.joget.apps.form.model.FormData;
+import org.joget.commons.util.FileManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A SharePointFileUpload field within a form, with temp files attached as if just uploaded
+ * by the browser. Temp files are left in place by formatData, so the same files can be
+ * submitted again and again.
+ */
+public class FormSubmission {
+    private static final String FIELD_ID = "attachments";
+
+    private final SharePointFileUpload element;
+    private final String[] tempPaths;
+
+    /**
+     * @param properties plugin properties of the field, see {@link TransferBenchmark#getConnectionProperties}
+     */
+    public FormSubmission(Map<String, Object> properties, int files, int fileSize) throws IOException {
+        properties.put("id", FIELD_ID);
+        element = new SharePointFileUpload();
+        element.setProperties(properties);
+
+        Form form = new Form();
+        form.setProperty("id", "benchmark");
+        element.setParent(form);
+
+        tempPaths = new String[files];
+        byte[] content = new byte[fileSize];
+        for (int i = 0; i < files; i++) {
+            String path = UUID.randomUUID() + File.separator + "attachment-" + i + ".bin";
+            File file = new File(FileManager.getBaseDirectory(), path);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), content);
+            tempPaths[i] = path;
+        }
+    }
+
+    /**
+     * Submits the form, uploading every attached file.
+     *
+     * @return the form data, holding form errors if an upload failed
+     */
+    public FormData submit() {
+        FormData formData = new FormData();
+        formData.addRequestParameterValues(FIELD_ID, tempPaths);
+        element.formatData(formData);
+        return formData;
+    }
+}
@@ -0,0 +1,56 @@
+package ae.gcg.plugins.sharepoint.fileupload.benchmark;
+
+import org.joget.apps.form.model.FormData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Submitting a form with {@code files} newly attached files through SharePointFileUpload.formatData,
+ * uploading them to {@link MockSharePointServer} with {@code uploadConcurrency} parallel uploads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FormatDataBenchmark {
+    @Param({"1", "10"})
+    public int files;
+
+    @Param({"1", "4"})
+    public int uploadConcurrency;
+
+    private MockSharePointServer server;
+    private FormSubmission submission;
+
+    @Setup
+    public void setUp() throws IOException {
+        // temp uploads are resolved below wflow.home
+        System.setProperty("wflow.home", Files.createTempDirectory("wflow").toString());
+        server = new MockSharePointServer();
+
+        Map<String, Object> properties = TransferBenchmark.getConnectionProperties(server.getBaseUrl(), uploadConcurrency);
+        properties.put("uploadConcurrency", String.valueOf(uploadConcurrency));
+        submission = new FormSubmission(properties, files, 64 * 1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public FormData formatData() {
+        return submission.submit();
+    }
+}
@@ -0,0 +1,96 @@
+package ae.gcg.plugins.sharepoint.fileupload.benchmark;
+
+import ae.gcg.plugins.sharepoint.fileupload.SharePointFileFormatter;
+import ae.gcg.plugins.sharepoint.fileupload.SharePointFileUpload;
+import ae.gcg.plugins.sharepoint.fileupload.util.ConnectionProfileRegistry;
+import ae.gcg.plugins.sharepoint.fileupload.util.SharepointAPIHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting of stored values and building of download links, over cells holding {@code files} files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FormatterBenchmark {
+    @Param({"1", "10", "100"})
+    public int files;
+
+    private SharePointFileFormatter formatter;
+    private SharepointAPIHelper helper;
+    private String value;
+    private String[] values;
+    private String[] documentIds;
+    private String profileId;
+
+    @Setup
+    public void setUp() throws IOException {
+        // profiles and keys are written below wflow.home
+        System.setProperty("wflow.home", Files.createTempDirectory("wflow").toString());
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("applicationId", TransferBenchmark.APPLICATION_ID);
+        properties.put("tenantName", TransferBenchmark.TENANT_NAME);
+        properties.put("tenantId", TransferBenchmark.TENANT_ID);
+        properties.put("clientId", TransferBenchmark.CLIENT_ID);
+        properties.put("clientSecret", "");
+        properties.put("refreshToken", "");
+        properties.put("siteName", TransferBenchmark.SITE_NAME);
+        properties.put("folderName", TransferBenchmark.FOLDER_NAME);
+        formatter = new SharePointFileFormatter();
+        formatter.setProperties(properties);
+        helper = new SharepointAPIHelper(properties);
+        profileId = ConnectionProfileRegistry.register(properties);
+
+        values = new String[files];
+        documentIds = new String[files];
+        StringBuilder stored = new StringBuilder();
+        for (int i = 0; i < files; i++) {
+            documentIds[i] = UUID.randomUUID().toString();
+            values[i] = "Quarterly report " + i + ".pdf|" + documentIds[i];
+            stored.append(i > 0 ? ";" : "").append(values[i]);
+        }
+        value = stored.toString();
+    }
+
+    @Benchmark
+    public String format() {
+        return formatter.format(null, null, null, value);
+    }
+
+    @Benchmark
+    public void parseFileName(Blackhole blackhole) {
+        for (String v : values) {
+            blackhole.consume(SharePointFileUpload.parseFileName(v));
+        }
+    }
+
+    @Benchmark
+    public void buildFileAccessURL(Blackhole blackhole) {
+        for (String documentId : documentIds) {
+            blackhole.consume(helper.buildFileAccessURL(TransferBenchmark.TENANT_NAME, TransferBenchmark.SITE_NAME, documentId));
+        }
+    }
+
+    @Benchmark
+    public void createDownloadHandle(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < files; i++) {
+            blackhole.consume(ConnectionProfileRegistry.createHandle(profileId, documentIds[i], values[i]));
+        }
+    }
+}
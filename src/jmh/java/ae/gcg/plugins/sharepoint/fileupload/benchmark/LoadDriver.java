@@ -0,0 +1,142 @@
+package ae.gcg.plugins.sharepoint.fileupload.benchmark;
+
+import org.joget.apps.form.model.FormData;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of concurrent form submits, each uploading its attachments through
+ * SharePointFileUpload.formatData, against the embedded {@link MockSharePointServer}
+ * or against a server given by baseUrl. Reports the throughput and latency percentiles.
+ * <p>
+ * Arguments are key=value pairs:
+ * <ul>
+ *     <li>clients: concurrent submitters (default 8), duration and warmup: seconds (default 30 and 5)</li>
+ *     <li>files: attachments per submit (default 1), fileSize: bytes (default 65536), uploadConcurrency (default 4)</li>
+ *     <li>latency, bandwidth, throttle, failure, retryAfter: injected by the embedded server, see {@link MockSharePointServer#main}</li>
+ *     <li>baseUrl: a running stand-in to use instead, out: file to write the JSON report to</li>
+ * </ul>
+ * Run with {@code mvn -P benchmark test-compile exec:exec@load-test -Dload.args="clients=32 throttle=0.05"}.
+ */
+public class LoadDriver {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = MockSharePointServer.parseArguments(args);
+        int clients = Integer.parseInt(options.getOrDefault("clients", "8"));
+        long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "30")));
+        long warmupMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("warmup", "5")));
+        int files = Integer.parseInt(options.getOrDefault("files", "1"));
+        int fileSize = Integer.parseInt(options.getOrDefault("fileSize", "65536"));
+
+        // temp uploads are resolved below wflow.home
+        System.setProperty("wflow.home", Files.createTempDirectory("wflow").toString());
+
+        MockSharePointServer server = null;
+        String baseUrl = options.get("baseUrl");
+        if (baseUrl == null) {
+            server = new MockSharePointServer()
+                    .withLatency(Long.parseLong(options.getOrDefault("latency", "0")))
+                    .withBandwidth(Long.parseLong(options.getOrDefault("bandwidth", "0")))
+                    .withThrottleRate(Double.parseDouble(options.getOrDefault("throttle", "0")), Integer.parseInt(options.getOrDefault("retryAfter", "1")))
+                    .withFailureRate(Double.parseDouble(options.getOrDefault("failure", "0")));
+            baseUrl = server.getBaseUrl();
+        }
+
+        List<FormSubmission> submissions = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Map<String, Object> properties = TransferBenchmark.getConnectionProperties(baseUrl, clients);
+            properties.put("uploadConcurrency", options.getOrDefault("uploadConcurrency", "4"));
+            submissions.add(new FormSubmission(properties, files, fileSize));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        long start = System.currentTimeMillis();
+        long measureFrom = start + warmupMillis;
+        long end = measureFrom + durationMillis;
+
+        List<Future<Client>> results = new ArrayList<>();
+        for (FormSubmission submission : submissions) {
+            results.add(executor.submit(() -> {
+                Client client = new Client();
+                while (System.currentTimeMillis() < end) {
+                    long submitStart = System.nanoTime();
+                    FormData formData = submission.submit();
+                    long latency = System.nanoTime() - submitStart;
+                    if (System.currentTimeMillis() >= measureFrom) {
+                        client.latencies.add(latency);
+                        if (formData.getFormErrors() != null && !formData.getFormErrors().isEmpty()) {
+                            client.failures++;
+                        }
+                    }
+                }
+                return client;
+            }));
+        }
+
+        List<Long> latencies = new ArrayList<>();
+        long failures = 0;
+        for (Future<Client> result : results) {
+            Client client = result.get();
+            latencies.addAll(client.latencies);
+            failures += client.failures;
+        }
+        executor.shutdown();
+        Collections.sort(latencies);
+
+        JSONObject report = new JSONObject();
+        report.put("clients", clients);
+        report.put("filesPerSubmit", files);
+        report.put("fileSize", fileSize);
+        report.put("durationSeconds", durationMillis / 1000.0);
+        report.put("submits", latencies.size());
+        report.put("failedSubmits", failures);
+        report.put("submitsPerSecond", latencies.size() * 1000.0 / durationMillis);
+
+        JSONObject latency = new JSONObject();
+        latency.put("p50", percentile(latencies, 0.50));
+        latency.put("p90", percentile(latencies, 0.90));
+        latency.put("p99", percentile(latencies, 0.99));
+        latency.put("max", percentile(latencies, 1.0));
+        report.put("latencyMillis", latency);
+
+        if (server != null) {
+            JSONObject serverStats = new JSONObject();
+            serverStats.put("requests", server.getRequestCount());
+            serverStats.put("throttled", server.getThrottledCount());
+            serverStats.put("failed", server.getFailedCount());
+            report.put("server", serverStats);
+            server.close();
+        }
+
+        String json = report.toString(2);
+        System.out.println(json);
+        if (options.containsKey("out")) {
+            Files.write(Paths.get(options.get("out")), json.getBytes(StandardCharsets.UTF_8));
+        }
+        System.exit(0);
+    }
+
+    private static double percentile(List<Long> sortedNanos, double percentile) {
+        if (sortedNanos.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.size()) - 1;
+        return sortedNanos.get(Math.max(0, Math.min(index, sortedNanos.size() - 1))) / 1e6;
+    }
+
+    private static class Client {
+        private final List<Long> latencies = new ArrayList<>();
+        private long failures = 0;
+    }
+}
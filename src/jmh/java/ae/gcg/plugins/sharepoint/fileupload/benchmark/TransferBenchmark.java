@@ -0,0 +1,128 @@
+package ae.gcg.plugins.sharepoint.fileupload.benchmark;
+
+import ae.gcg.plugins.sharepoint.fileupload.util.SharepointAPIHelper;
+import okhttp3.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload and download throughput of SharepointAPIHelper against {@link MockSharePointServer}.
+ * Each operation transfers {@code concurrency} files in parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransferBenchmark {
+    static final String APPLICATION_ID = "00000003-0000-0ff1-ce00-000000000000";
+    static final String TENANT_NAME = "benchmark";
+    static final String TENANT_ID = "benchmark-tenant";
+    static final String CLIENT_ID = "benchmark-client";
+    static final String SITE_NAME = "benchmark";
+    static final String FOLDER_NAME = "benchmark";
+
+    @Param({"1024", "1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"1", "4", "16"})
+    public int concurrency;
+
+    private MockSharePointServer server;
+    private SharepointAPIHelper helper;
+    private ExecutorService executor;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new MockSharePointServer();
+        helper = new SharepointAPIHelper(getConnectionProperties(server.getBaseUrl(), concurrency));
+        executor = Executors.newFixedThreadPool(concurrency);
+
+        file = File.createTempFile("benchmark", ".bin");
+        byte[] buffer = new byte[65536];
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long remaining = fileSize; remaining > 0; remaining -= buffer.length) {
+                out.write(buffer, 0, (int) Math.min(buffer.length, remaining));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        server.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void upload(Blackhole blackhole) throws Exception {
+        runConcurrently(() -> helper.uploadFileToSharePoint(APPLICATION_ID, TENANT_NAME, CLIENT_ID, "", "", TENANT_ID, SITE_NAME, FOLDER_NAME, file.getName(), file), blackhole);
+    }
+
+    @Benchmark
+    public void download(Blackhole blackhole) throws Exception {
+        runConcurrently(() -> {
+            try (Response response = helper.downloadFileFromSharePoint(APPLICATION_ID, TENANT_NAME, CLIENT_ID, "", "", TENANT_ID, SITE_NAME, FOLDER_NAME, "size-" + fileSize)) {
+                InputStream in = response.body().byteStream();
+                byte[] buffer = new byte[65536];
+                long total = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    total += read;
+                }
+                return total;
+            }
+        }, blackhole);
+    }
+
+    private void runConcurrently(Callable<?> transfer, Blackhole blackhole) throws Exception {
+        List<Future<?>> transfers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            transfers.add(executor.submit(transfer));
+        }
+        for (Future<?> future : transfers) {
+            blackhole.consume(future.get());
+        }
+    }
+
+    /**
+     * @return plugin properties pointing the helper to the stand-in server at the base URL
+     */
+    static Map<String, Object> getConnectionProperties(String baseUrl, int concurrency) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("applicationId", APPLICATION_ID);
+        properties.put("tenantName", TENANT_NAME);
+        properties.put("tenantId", TENANT_ID);
+        properties.put("clientId", CLIENT_ID);
+        properties.put("clientSecret", "");
+        properties.put("refreshToken", "");
+        properties.put("siteName", SITE_NAME);
+        properties.put("folderName", FOLDER_NAME);
+        properties.put("maxRequestsPerHost", String.valueOf(Math.max(5, concurrency)));
+        properties.put("sharepointBaseUrl", baseUrl);
+        properties.put("accessControlBaseUrl", baseUrl);
+        return properties;
+    }
+}
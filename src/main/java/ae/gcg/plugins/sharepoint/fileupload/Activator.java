@@ -1,5 +1,20 @@
 package ae.gcg.plugins.sharepoint.fileupload;
 
+import ae.gcg.plugins.sharepoint.fileupload.util.AccessTokenCache;
+import ae.gcg.plugins.sharepoint.fileupload.util.ChunkRelay;
+import ae.gcg.plugins.sharepoint.fileupload.util.CircuitBreaker;
+import ae.gcg.plugins.sharepoint.fileupload.util.ConnectionProfileRegistry;
+import ae.gcg.plugins.sharepoint.fileupload.util.DownloadExecutors;
+import ae.gcg.plugins.sharepoint.fileupload.util.EagerUploads;
+import ae.gcg.plugins.sharepoint.fileupload.util.FileInfoCache;
+import ae.gcg.plugins.sharepoint.fileupload.util.FolderCache;
+import ae.gcg.plugins.sharepoint.fileupload.util.FormDigestCache;
+import ae.gcg.plugins.sharepoint.fileupload.util.RemoteDeletion;
+import ae.gcg.plugins.sharepoint.fileupload.util.SharepointAPIHelper;
+import ae.gcg.plugins.sharepoint.fileupload.util.SharepointClientRegistry;
+import ae.gcg.plugins.sharepoint.fileupload.util.SharepointMetrics;
+import ae.gcg.plugins.sharepoint.fileupload.util.UploadLimiter;
+import ae.gcg.plugins.sharepoint.fileupload.util.UploadOutbox;
 import java.util.ArrayList;
 import java.util.Collection;
 import org.osgi.framework.BundleActivator;
@@ -16,6 +31,10 @@ public class Activator implements BundleActivator {
         //Register plugin here
         registrationList.add(context.registerService(SharePointFileUpload.class.getName(), new SharePointFileUpload(), null));
         registrationList.add(context.registerService(SharePointFileFormatter.class.getName(), new SharePointFileFormatter(), null));
+        registrationList.add(context.registerService(SharePointZipDownloadAction.class.getName(), new SharePointZipDownloadAction(), null));
+
+        // resume uploads left in the outbox by a previous run
+        UploadOutbox.start();
 
     }
 
@@ -23,5 +42,21 @@ public class Activator implements BundleActivator {
         for (ServiceRegistration registration : registrationList) {
             registration.unregister();
         }
+
+        UploadOutbox.shutdown();
+        RemoteDeletion.shutdown();
+        EagerUploads.shutdown();
+        ChunkRelay.clear();
+        UploadLimiter.shutdown();
+        DownloadExecutors.shutdown();
+        SharepointAPIHelper.shutdown();
+        SharepointClientRegistry.shutdown();
+        AccessTokenCache.clear();
+        FormDigestCache.clear();
+        FolderCache.clear();
+        FileInfoCache.clear();
+        ConnectionProfileRegistry.clear();
+        CircuitBreaker.clear();
+        SharepointMetrics.clear();
     }
 }
\ No newline at end of file
@@ -1,12 +1,32 @@
 package ae.gcg.plugins.sharepoint.fileupload;
 
+import ae.gcg.plugins.sharepoint.fileupload.util.CircuitBreaker;
+import ae.gcg.plugins.sharepoint.fileupload.util.ClientSettings;
+import ae.gcg.plugins.sharepoint.fileupload.util.ConnectionProfileRegistry;
+import ae.gcg.plugins.sharepoint.fileupload.util.DownloadCache;
+import ae.gcg.plugins.sharepoint.fileupload.util.FileInfoCache;
+import ae.gcg.plugins.sharepoint.fileupload.util.SharepointAPIHelper;
+import ae.gcg.plugins.sharepoint.fileupload.util.UploadOutbox;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
 import org.joget.apps.app.model.AppDefinition;
+import org.joget.apps.app.service.AppPluginUtil;
 import org.joget.apps.app.service.AppUtil;
 import org.joget.apps.datalist.model.DataList;
 import org.joget.apps.datalist.model.DataListColumn;
 import org.joget.apps.datalist.model.DataListColumnFormatDefault;
+import org.joget.apps.datalist.service.DataListService;
+import org.joget.commons.util.LogUtil;
 import org.joget.commons.util.SecurityUtil;
 import org.joget.commons.util.StringUtil;
 import org.joget.workflow.util.WorkflowUtil;
@@ -23,36 +43,19 @@ public class SharePointFileFormatter extends DataListColumnFormatDefault {
             String[] values = value.toString().split(";");
             List<String> results = new ArrayList<String>();
 
-            AppDefinition appDef = AppUtil.getCurrentAppDefinition();
-            String appId = "";
-            String appVersion = "";
-            if (appDef != null) {
-                appId = appDef.getId();
-                appVersion = appDef.getVersion().toString();
+            String serviceUrl = getServiceUrl();
+            String enableDownload = getPropertyString("enableDownload");
+
+            // resolved for the whole page on the first cell
+            String profileId = getProfileId(dataList, column);
+            Map<String, FileInfoCache.Entry> fileInfo = null;
+            if ("true".equalsIgnoreCase(getPropertyString("showFileInfo"))) {
+                fileInfo = getFileInfo(dataList, column);
             }
 
-            String enableDownload = getPropertyString("enableDownload");
-            String applicationId = getPropertyString("applicationId");
-            String clientId = getPropertyString("clientId");
-            String clientSecret = getPropertyString("clientSecret");
-            clientSecret = SecurityUtil.decrypt(clientSecret);
-            String refreshToken = getPropertyString("refreshToken");
-            refreshToken = SecurityUtil.decrypt(refreshToken);
-            String tenantName = getPropertyString("tenantName");
-            String tenantId = getPropertyString("tenantId");
-            String siteName = getPropertyString("siteName");
-            String folderName = getPropertyString("folderName");
-
-            JSONObject jsonParams = new JSONObject();
-
-            jsonParams.put("applicationId", applicationId);
-            jsonParams.put("clientId", clientId);
-            jsonParams.put("clientSecret", clientSecret);
-            jsonParams.put("refreshToken", refreshToken);
-            jsonParams.put("tenantName", tenantName);
-            jsonParams.put("tenantId", tenantId);
-            jsonParams.put("siteName", siteName);
-            jsonParams.put("folderName", folderName);
+            // the files of the row that can be downloaded together as a ZIP
+            StringBuilder zipParams = new StringBuilder();
+            int zipFiles = 0;
 
             for (String v : values) {
                 if (v != null && !v.isEmpty() && v.indexOf('|') != -1) {
@@ -60,16 +63,22 @@ public class SharePointFileFormatter extends DataListColumnFormatDefault {
                     if (verticalBarSplit.length > 0) {
                         String filename = verticalBarSplit[0];
                         String documentId = verticalBarSplit[1];
-                        jsonParams.put("fileName", filename);
-                        String params = StringUtil.escapeString(SecurityUtil.encrypt(jsonParams.toString()), StringUtil.TYPE_URL, null);
-
-                        if ("true".equalsIgnoreCase(enableDownload)) {
-                            String filePath = WorkflowUtil.getHttpServletRequest().getContextPath() + "/web/json/app/" + appId + "/" + appVersion + "/plugin/ae.gcg.plugins.sharepoint.fileupload.SharePointFileUpload/service?dID=" + documentId + "&action=download&params=" + params;
+                        boolean missing = fileInfo != null && fileInfo.containsKey(documentId) && fileInfo.get(documentId).getFile() == null;
+                        if ("true".equalsIgnoreCase(enableDownload) && !UploadOutbox.isPending(documentId) && !missing) {
+                            String downloadParams = getDownloadParams(profileId, documentId, filename);
+                            String filePath = serviceUrl + "?dID=" + documentId + "&action=download&" + downloadParams;
                             String downloadUrl = "<a href=\"" + filePath + "\" target=\"_blank\">" + filename + "</a>";
                             result.append(downloadUrl);
+                            if (downloadParams.startsWith("fn=")) {
+                                zipParams.append("&dID=").append(documentId).append("&").append(downloadParams);
+                                zipFiles++;
+                            }
                         } else {
                             result.append(filename);
                         }
+                        if (fileInfo != null && fileInfo.containsKey(documentId)) {
+                            result.append(formatFileInfo(fileInfo.get(documentId)));
+                        }
                         result.append(";");
                     }
 
@@ -81,10 +90,222 @@ public class SharePointFileFormatter extends DataListColumnFormatDefault {
             if (result.length() > 0) {
                 result.deleteCharAt(result.length() - 1);
             }
+            if (zipFiles > 1) {
+                String zipPath = serviceUrl + "?action=downloadAll" + zipParams;
+                result.append(" <a class=\"sharepoint-download-all\" href=\"").append(zipPath).append("\">")
+                        .append(AppPluginUtil.getMessage("ae.gcg.plugins.sharepoint.fileupload.downloadAll", getClassName(), MESSAGE_PATH)).append("</a>");
+            }
         }
         return result.toString();
     }
 
+    /**
+     * @return the URL of the web service of the upload element serving the downloads of the current app
+     */
+    public String getServiceUrl() {
+        AppDefinition appDef = AppUtil.getCurrentAppDefinition();
+        String appId = "";
+        String appVersion = "";
+        if (appDef != null) {
+            appId = appDef.getId();
+            appVersion = appDef.getVersion().toString();
+        }
+        return WorkflowUtil.getHttpServletRequest().getContextPath() + "/web/json/app/" + appId + "/" + appVersion + "/plugin/ae.gcg.plugins.sharepoint.fileupload.SharePointFileUpload/service";
+    }
+
+    /**
+     * Lists the files of a cell that can be downloaded as part of a ZIP, those linked through a signed handle.
+     *
+     * @return the dID, fn and h parameters of each file
+     */
+    public List<String[]> getZipFiles(DataList dataList, DataListColumn column, Object value) {
+        List<String[]> files = new ArrayList<String[]>();
+        String profileId = getProfileId(dataList, column);
+        if (value == null || profileId == null || !"true".equalsIgnoreCase(getPropertyString("enableDownload"))) {
+            return files;
+        }
+        for (String v : value.toString().split(";")) {
+            String[] verticalBarSplit = v.split("\\|");
+            if (verticalBarSplit.length < 2 || verticalBarSplit[1].isEmpty() || UploadOutbox.isPending(verticalBarSplit[1])) {
+                continue;
+            }
+            try {
+                files.add(new String[]{verticalBarSplit[1], verticalBarSplit[0], ConnectionProfileRegistry.createHandle(profileId, verticalBarSplit[1], verticalBarSplit[0])});
+            } catch (IOException e) {
+                LogUtil.error(getClassName(), e, "Unable to create download handle");
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Registers the connection settings once for the column on the current page, links reference
+     * them through a signed handle.
+     *
+     * @return the id of the connection profile, or null if it could not be registered
+     */
+    protected String getProfileId(DataList dataList, DataListColumn column) {
+        HttpServletRequest request = WorkflowUtil.getHttpServletRequest();
+        String attribute = getClassName() + "." + dataList.getId() + "." + column.getName() + ".profileId";
+        if (request != null && request.getAttribute(attribute) != null) {
+            String profileId = (String) request.getAttribute(attribute);
+            return profileId.isEmpty() ? null : profileId;
+        }
+
+        String profileId = null;
+        try {
+            profileId = ConnectionProfileRegistry.register(getProperties());
+        } catch (IOException e) {
+            LogUtil.error(getClassName(), e, "Unable to register the connection profile, links fall back to encrypted parameters");
+        }
+        if (request != null) {
+            request.setAttribute(attribute, profileId != null ? profileId : "");
+        }
+        return profileId;
+    }
+
+    /**
+     * @return the query string identifying the connection, a signed handle or else the encrypted connection settings
+     */
+    protected String getDownloadParams(String profileId, String documentId, String filename) {
+        if (profileId != null) {
+            try {
+                return "fn=" + StringUtil.escapeString(filename, StringUtil.TYPE_URL, null) + "&h=" + ConnectionProfileRegistry.createHandle(profileId, documentId, filename);
+            } catch (IOException e) {
+                LogUtil.error(getClassName(), e, "Unable to create download handle");
+            }
+        }
+        JSONObject jsonParams = getConnectionParams();
+        jsonParams.put("fileName", filename);
+        return "params=" + StringUtil.escapeString(SecurityUtil.encrypt(jsonParams.toString()), StringUtil.TYPE_URL, null);
+    }
+
+    /**
+     * @return the connection settings with the secrets decrypted, to be encrypted as a whole in links
+     */
+    protected JSONObject getConnectionParams() {
+        JSONObject jsonParams = new JSONObject();
+
+        jsonParams.put("applicationId", getPropertyString("applicationId"));
+        jsonParams.put("clientId", getPropertyString("clientId"));
+        jsonParams.put("clientSecret", SecurityUtil.decrypt(getPropertyString("clientSecret")));
+        jsonParams.put("refreshToken", SecurityUtil.decrypt(getPropertyString("refreshToken")));
+        jsonParams.put("tenantName", getPropertyString("tenantName"));
+        jsonParams.put("tenantId", getPropertyString("tenantId"));
+        jsonParams.put("siteName", getPropertyString("siteName"));
+        jsonParams.put("folderName", getPropertyString("folderName"));
+        for (String key : ClientSettings.PROPERTY_NAMES) {
+            jsonParams.put(key, getPropertyString(key));
+        }
+        for (String key : CircuitBreaker.PROPERTY_NAMES) {
+            jsonParams.put(key, getPropertyString(key));
+        }
+        for (String key : DownloadCache.PROPERTY_NAMES) {
+            jsonParams.put(key, getPropertyString(key));
+        }
+        for (String key : SharepointAPIHelper.ENDPOINT_PROPERTY_NAMES) {
+            jsonParams.put(key, getPropertyString(key));
+        }
+        for (String key : SharepointAPIHelper.DOWNLOAD_PROPERTY_NAMES) {
+            jsonParams.put(key, getPropertyString(key));
+        }
+        return jsonParams;
+    }
+
+    /**
+     * Looks up every file shown in this column on the current page, in one or a few $batch calls,
+     * and keeps the result as a request attribute for the remaining cells.
+     *
+     * @return the lookup result by UniqueId, files that could not be looked up are left out
+     */
+    protected Map<String, FileInfoCache.Entry> getFileInfo(DataList dataList, DataListColumn column) {
+        HttpServletRequest request = WorkflowUtil.getHttpServletRequest();
+        String attribute = getClassName() + "." + dataList.getId() + "." + column.getName();
+        if (request != null && request.getAttribute(attribute) != null) {
+            return (Map<String, FileInfoCache.Entry>) request.getAttribute(attribute);
+        }
+
+        String tenantName = getPropertyString("tenantName");
+        String siteName = getPropertyString("siteName");
+        Map<String, FileInfoCache.Entry> fileInfo = new HashMap<String, FileInfoCache.Entry>();
+        Set<String> uncached = new LinkedHashSet<String>();
+        if (dataList.getRows() != null) {
+            for (Object row : dataList.getRows()) {
+                Object cellValue = DataListService.evaluateColumnValueFromRow(row, column.getName());
+                if (cellValue == null) {
+                    continue;
+                }
+                for (String v : cellValue.toString().split(";")) {
+                    String[] verticalBarSplit = v.split("\\|");
+                    if (verticalBarSplit.length < 2 || verticalBarSplit[1].isEmpty() || UploadOutbox.isPending(verticalBarSplit[1])) {
+                        continue;
+                    }
+                    String documentId = verticalBarSplit[1];
+                    FileInfoCache.Entry cached = FileInfoCache.get(FileInfoCache.getKey(tenantName, siteName, documentId));
+                    if (cached != null) {
+                        fileInfo.put(documentId, cached);
+                    } else {
+                        uncached.add(documentId);
+                    }
+                }
+            }
+        }
+
+        if (!uncached.isEmpty()) {
+            try {
+                String clientSecret = SecurityUtil.decrypt(getPropertyString("clientSecret"));
+                String refreshToken = SecurityUtil.decrypt(getPropertyString("refreshToken"));
+                Map<String, JSONObject> files = new SharepointAPIHelper(getProperties()).getFilesFromSharePoint(getPropertyString("applicationId"), tenantName,
+                        getPropertyString("clientId"), clientSecret, refreshToken, getPropertyString("tenantId"), siteName, new ArrayList<String>(uncached));
+                for (Map.Entry<String, JSONObject> file : files.entrySet()) {
+                    fileInfo.put(file.getKey(), FileInfoCache.put(FileInfoCache.getKey(tenantName, siteName, file.getKey()), file.getValue()));
+                }
+            } catch (Exception e) {
+                LogUtil.warn(getClassName(), "Unable to read file information from SharePoint: " + e.getMessage());
+            }
+        }
+
+        if (request != null) {
+            request.setAttribute(attribute, fileInfo);
+        }
+        return fileInfo;
+    }
+
+    protected String formatFileInfo(FileInfoCache.Entry entry) {
+        JSONObject file = entry.getFile();
+        if (file == null) {
+            return " <span class=\"sharepoint-file-missing\">" + AppPluginUtil.getMessage("ae.gcg.plugins.sharepoint.fileupload.fileNotFound", getClassName(), MESSAGE_PATH) + "</span>";
+        }
+
+        List<String> info = new ArrayList<String>();
+        if (file.has("Length")) {
+            info.add(formatSize(Long.parseLong(file.get("Length").toString())));
+        }
+        String modified = file.optString("TimeLastModified", "");
+        if (!modified.isEmpty()) {
+            try {
+                info.add(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault()).format(Instant.parse(modified)));
+            } catch (DateTimeParseException e) {
+                info.add(modified);
+            }
+        }
+        return info.isEmpty() ? "" : " <span class=\"sharepoint-file-info\">(" + String.join(", ", info) + ")</span>";
+    }
+
+    private String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = new String[]{"KB", "MB", "GB", "TB"};
+        double size = bytes;
+        int unit = -1;
+        while (size >= 1024 && unit < units.length - 1) {
+            size /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", size, units[unit]);
+    }
+
     @Override
     public String getName() {
         return "Sharepoint File Formatter";
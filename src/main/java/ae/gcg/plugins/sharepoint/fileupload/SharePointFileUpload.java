@@ -1,7 +1,22 @@
 package ae.gcg.plugins.sharepoint.fileupload;
 
+import ae.gcg.plugins.sharepoint.fileupload.util.AdaptiveConcurrencyLimiter;
+import ae.gcg.plugins.sharepoint.fileupload.util.ChunkRelay;
+import ae.gcg.plugins.sharepoint.fileupload.util.CircuitBreaker;
+import ae.gcg.plugins.sharepoint.fileupload.util.ClientSettings;
+import ae.gcg.plugins.sharepoint.fileupload.util.ConnectionProfileRegistry;
+import ae.gcg.plugins.sharepoint.fileupload.util.DedupIndex;
+import ae.gcg.plugins.sharepoint.fileupload.util.DownloadCache;
+import ae.gcg.plugins.sharepoint.fileupload.util.DownloadExecutors;
+import ae.gcg.plugins.sharepoint.fileupload.util.EagerUploads;
+import ae.gcg.plugins.sharepoint.fileupload.util.ImageResizer;
+import ae.gcg.plugins.sharepoint.fileupload.util.RemoteDeletion;
 import ae.gcg.plugins.sharepoint.fileupload.util.SharepointAPIHelper;
-import okhttp3.Headers;
+import ae.gcg.plugins.sharepoint.fileupload.util.SharepointClientRegistry;
+import ae.gcg.plugins.sharepoint.fileupload.util.SharepointMetrics;
+import ae.gcg.plugins.sharepoint.fileupload.util.UploadLimiter;
+import ae.gcg.plugins.sharepoint.fileupload.util.UploadOutbox;
+import ae.gcg.plugins.sharepoint.fileupload.util.ZipDownload;
 import okhttp3.Response;
 import org.joget.apps.app.model.AppDefinition;
 import org.joget.apps.app.service.AppPluginUtil;
@@ -15,15 +30,36 @@ import org.joget.workflow.util.WorkflowUtil;
 import org.json.JSONObject;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import java.io.*;
 import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class SharePointFileUpload extends Element implements FormBuilderPaletteElement, FileDownloadSecurity, PluginWebSupport, PwaOfflineResources {
     private final static String MESSAGE_PATH = "messages/SharePointFileUpload";
+    private final static String[] FORWARDED_REQUEST_HEADERS = new String[]{"Range", "If-Range", "If-None-Match", "If-Modified-Since"};
+    private final static String[] FORWARDED_RESPONSE_HEADERS = new String[]{"Content-Range", "Accept-Ranges", "ETag", "Last-Modified"};
+    private final static String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private final static String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private final static String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private final static String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    private final static int MAX_ZIP_FILES = 500;
+    private final static String EAGER_UPLOAD_HANDLE = "eager-upload";
+    private final static String CHUNK_RELAY_HANDLE = "chunk-relay";
 
     @Override
     public String getName() {
@@ -196,11 +232,80 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
         String nonce = SecurityUtil.generateNonce(new String[]{"FileUpload", appDef.getAppId(), appDef.getVersion().toString(), paramName, fileType}, 1);
         try {
             url = url + "?_nonce=" + URLEncoder.encode(nonce, "UTF-8") + "&_paramName=" + URLEncoder.encode(paramName, "UTF-8") + "&_appId=" + URLEncoder.encode(appDef.getAppId(), "UTF-8") + "&_appVersion=" + URLEncoder.encode(appDef.getVersion().toString(), "UTF-8") + "&_ft=" + URLEncoder.encode(fileType, "UTF-8");
+            // the service runs without the plugin properties, the handles give it the connection to upload with
+            if ("eager".equals(getPropertyString("uploadMode"))) {
+                String profileId = ConnectionProfileRegistry.register(getProperties());
+                url = url + "&_eager=" + URLEncoder.encode(ConnectionProfileRegistry.createHandle(profileId, EAGER_UPLOAD_HANDLE, paramName), "UTF-8");
+            }
+            if ("true".equals(getPropertyString("chunkedUpload"))) {
+                String profileId = ConnectionProfileRegistry.register(getProperties());
+                url = url + "&_relay=" + URLEncoder.encode(ConnectionProfileRegistry.createHandle(profileId, CHUNK_RELAY_HANDLE, paramName), "UTF-8");
+            }
         } catch (Exception e) {
         }
         return url;
     }
 
+    /**
+     * Starts uploading a dropped file to SharePoint right away when the service URL carries an eager upload handle.
+     */
+    protected void startEagerUpload(String handle, String paramName, String appId, String path) {
+        if (handle == null || handle.isEmpty()) {
+            return;
+        }
+        Map<String, Object> profile = ConnectionProfileRegistry.resolve(handle, EAGER_UPLOAD_HANDLE, paramName);
+        File file = FileManager.getFileByPath(path);
+        if (profile == null || file == null) {
+            LogUtil.warn(getClassName(), "Not uploading " + path + " eagerly, the upload handle is invalid or expired");
+            return;
+        }
+        EagerUploads.start(path, file, getUploadFolder(profile, path, appId), profile);
+    }
+
+    /**
+     * Relays a chunk sent by dropzone into the SharePoint upload session of its file. The response
+     * carries the relay path of the file once its last chunk is relayed. A chunk that cannot be
+     * relayed is answered with an error status, so that dropzone sends it again.
+     */
+    protected void relayChunk(HttpServletRequest request, HttpServletResponse response, String paramName, String appId, MultipartFile chunk, JSONObject obj) throws IOException {
+        Map<String, Object> profile = ConnectionProfileRegistry.resolve(request.getParameter("_relay"), CHUNK_RELAY_HANDLE, paramName);
+        if (profile == null) {
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            obj.put("error", ResourceBundleUtil.getMessage("general.error.error403"));
+            return;
+        }
+
+        long offset;
+        long totalSize;
+        try {
+            offset = Long.parseLong(request.getParameter("dzchunkbyteoffset"));
+            totalSize = Long.parseLong(request.getParameter("dztotalfilesize"));
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            obj.put("error", "Invalid chunk offset or file size");
+            return;
+        }
+
+        String fileName = chunk.getOriginalFilename();
+        String key = paramName + "|" + request.getParameter("dzuuid");
+        try {
+            String path = ChunkRelay.relay(key, profile, getUploadFolder(profile, key, appId), fileName, totalSize, offset, chunk);
+            if (path != null) {
+                obj.put("path", path);
+                obj.put("filename", fileName);
+                obj.put("newFilename", fileName);
+            }
+        } catch (ChunkRelay.OffsetMismatchException e) {
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            obj.put("error", e.getMessage());
+            obj.put("offset", e.getExpectedOffset());
+        } catch (IOException e) {
+            LogUtil.warn(getClassName(), "Unable to relay the chunk of " + fileName + " at offset " + offset + ": " + e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+            obj.put("error", MessageFormat.format(AppPluginUtil.getMessage("ae.gcg.plugins.sharepoint.fileupload.uploadFailed", getClassName(), MESSAGE_PATH), fileName));
+        }
+    }
+
     @Override
     public FormRowSet formatData(FormData formData) {
         FormRowSet rowSet = null;
@@ -209,14 +314,11 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
 
         String applicationId = getPropertyString("applicationId");
         String clientId = getPropertyString("clientId");
-        String clientSecret = getPropertyString("clientSecret");
-        clientSecret = SecurityUtil.decrypt(clientSecret);
-        String refreshToken = getPropertyString("refreshToken");
-        refreshToken = SecurityUtil.decrypt(refreshToken);
+        String clientSecret = SecurityUtil.decrypt(getPropertyString("clientSecret"));
+        String refreshToken = SecurityUtil.decrypt(getPropertyString("refreshToken"));
         String tenantName = getPropertyString("tenantName");
         String tenantId = getPropertyString("tenantId");
         String siteName = getPropertyString("siteName");
-        String folderName = getPropertyString("folderName");
 
         Set<String> remove = new HashSet<>();
         Set<String> existing = new HashSet<>();
@@ -239,35 +341,89 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
                 FormRow result = new FormRow();
                 List<String> resultedValue = new ArrayList<String>();
                 List<String> filePaths = new ArrayList<String>();
+                List<String> failedPaths = new ArrayList<String>();
+                List<String> errors = new ArrayList<String>();
+
+                // start all uploads first, keeping their position among the existing values
+                boolean async = "async".equals(getPropertyString("uploadMode"));
+                boolean eager = "eager".equals(getPropertyString("uploadMode"));
+                Form parentForm = findParentForm();
+                SharepointAPIHelper helper = new SharepointAPIHelper(getProperties());
+                int uploadConcurrency = ClientSettings.getInt(getProperties(), "uploadConcurrency", 4);
+                List<Object> orderedValues = new ArrayList<Object>();
+
+                // images larger than the resize options are downscaled before they are uploaded, unless already uploaded when dropped
+                Map<String, File> uploadFiles = new HashMap<String, File>();
+                Map<String, CompletableFuture<String>> eagerUploads = new HashMap<String, CompletableFuture<String>>();
+                for (String value : values) {
+                    File file = FileManager.getFileByPath(value);
+                    CompletableFuture<String> eagerUpload = (file != null && eager) || ChunkRelay.isPath(value) ? EagerUploads.take(value, getUploadFolder(formData, value)) : null;
+                    if (eagerUpload != null) {
+                        eagerUploads.put(value, eagerUpload);
+                    } else if (file != null) {
+                        uploadFiles.put(value, ImageResizer.resize(file, getProperties()));
+                    }
+                }
+
+                // attachments whose content is already in SharePoint are not uploaded again
+                DedupIndex dedupIndex = async ? null : DedupIndex.getInstance(getProperties());
+                String recordId = formData.getPrimaryKeyValue();
+                Map<String, String> hashes = new HashMap<String, String>();
+                Map<String, String> duplicates = dedupIndex != null ? findDuplicates(dedupIndex, helper, uploadFiles, hashes) : Collections.<String, String>emptyMap();
 
                 for (String value : values) {
                     // check if the file is in temp file
                     File file = FileManager.getFileByPath(value);
-
-                    if (file != null) {
-                        // upload file to SharePoint
-                        String documentId = "";
+                    File uploadFile = uploadFiles.get(value);
+                    String uploadFolder = getUploadFolder(formData, value);
+
+                    if (ChunkRelay.isPath(value)) {
+                        // relayed to SharePoint chunk by chunk when it was dropped, there is no temp file to upload again
+                        String fileName = ChunkRelay.getFileName(value);
+                        if (eagerUploads.containsKey(value)) {
+                            orderedValues.add(new PendingUpload(value, fileName, null, eagerUploads.get(value)));
+                        } else {
+                            LogUtil.warn(getClassName(), "The relayed upload of " + fileName + " is unknown on this node or expired");
+                            errors.add(MessageFormat.format(AppPluginUtil.getMessage("ae.gcg.plugins.sharepoint.fileupload.uploadFailed", getClassName(), MESSAGE_PATH), fileName));
+                        }
+                    } else if (file != null && async) {
+                        // hand the file over to the outbox, the record keeps a placeholder until it is uploaded
                         try {
-                            documentId = new SharepointAPIHelper().uploadFileToSharePoint(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, folderName, file.getName(), file);
+                            Map<String, Object> connection = new HashMap<String, Object>(getProperties());
+                            connection.put("folderName", uploadFolder);
+                            String placeholder = UploadOutbox.enqueue(uploadFile, file.getName(), connection, parentForm.getPropertyString(FormUtil.PROPERTY_ID), parentForm.getPropertyString(FormUtil.PROPERTY_TABLE_NAME), id);
+                            orderedValues.add(file.getName() + "|" + placeholder);
                         } catch (IOException e) {
-                            // Convert stack trace to a single string
-                            StringWriter sw = new StringWriter();
-                            PrintWriter pw = new PrintWriter(sw);
-                            e.printStackTrace(pw);
-                            String stackTrace = sw.toString();
-
-                            // Log the stack trace using your custom LogUtil
-                            LogUtil.info("An Exception occurred while creating document: " + e.getMessage(), "\nStackTrace: " + stackTrace);
+                            LogUtil.error(getClassName(), e, "Unable to add " + file.getName() + " to the upload outbox");
+                            failedPaths.add(value);
+                            errors.add(MessageFormat.format(AppPluginUtil.getMessage("ae.gcg.plugins.sharepoint.fileupload.uploadFailed", getClassName(), MESSAGE_PATH), file.getName()));
                         }
-
-                        filePaths.add(value + "|" + documentId);
-                        resultedValue.add(file.getName() + "|" + documentId);
+                    } else if (file != null && eagerUploads.containsKey(value)) {
+                        // collect the upload started when the file was dropped, uploading the file again if it failed
+                        Future<String> upload = eagerUploads.get(value).handle((documentId, e) -> e == null ? CompletableFuture.completedFuture(documentId)
+                                : UploadLimiter.submit(tenantName, uploadConcurrency, () -> helper.uploadAsync(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, uploadFolder, file.getName(), file)))
+                                .thenCompose(retry -> retry);
+                        orderedValues.add(new PendingUpload(value, file.getName(), null, upload));
+                    } else if (file != null && duplicates.containsKey(value)) {
+                        dedupIndex.addReference(hashes.get(value), duplicates.get(value), recordId);
+                        orderedValues.add(new PendingUpload(value, file.getName(), getResizedCopy(file, uploadFile), CompletableFuture.completedFuture(duplicates.get(value))));
+                    } else if (file != null) {
+                        // upload file to SharePoint, no thread is held while the upload is in flight
+                        String hash = hashes.get(value);
+                        Future<String> upload = UploadLimiter.submit(tenantName, uploadConcurrency, () -> helper.uploadAsync(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, uploadFolder, file.getName(), uploadFile)
+                                .thenApply(documentId -> {
+                                    if (hash != null) {
+                                        dedupIndex.put(hash, uploadFile.length(), documentId, recordId);
+                                    }
+                                    return documentId;
+                                }));
+                        orderedValues.add(new PendingUpload(value, file.getName(), getResizedCopy(file, uploadFile), upload));
                     } else {
                         if(!value.isEmpty()){
                             if (remove != null && !remove.isEmpty() && !remove.contains("")) {
                                 remove.removeIf(item -> {
                                     if (item.contains(value)) {
-                                        resultedValue.add(item);
+                                        orderedValues.add(item);
                                         return true;
                                     }
                                     return false;
@@ -275,7 +431,7 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
                             } else {
                                 existing.removeIf(item -> {
                                     if (item.contains(value)) {
-                                        resultedValue.add(item);
+                                        orderedValues.add(item);
                                         return true;
                                     }
                                     return false;
@@ -285,21 +441,67 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
                     }
                 }
 
+                for (Object orderedValue : orderedValues) {
+                    if (orderedValue instanceof PendingUpload) {
+                        PendingUpload pending = (PendingUpload) orderedValue;
+                        try {
+                            String documentId = pending.upload.get();
+                            filePaths.add(pending.value + "|" + documentId);
+                            resultedValue.add(pending.fileName + "|" + documentId);
+                        } catch (InterruptedException | ExecutionException e) {
+                            if (e instanceof InterruptedException) {
+                                Thread.currentThread().interrupt();
+                            }
+                            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+
+                            // Convert stack trace to a single string
+                            StringWriter sw = new StringWriter();
+                            PrintWriter pw = new PrintWriter(sw);
+                            cause.printStackTrace(pw);
+                            String stackTrace = sw.toString();
+
+                            // Log the stack trace using your custom LogUtil
+                            LogUtil.info("An Exception occurred while creating document: " + cause.getMessage(), "\nStackTrace: " + stackTrace);
+
+                            // keep the temp file so that it is still attached when the form is shown again
+                            if (!ChunkRelay.isPath(pending.value)) {
+                                failedPaths.add(pending.value);
+                            }
+                            errors.add(MessageFormat.format(AppPluginUtil.getMessage("ae.gcg.plugins.sharepoint.fileupload.uploadFailed", getClassName(), MESSAGE_PATH), pending.fileName));
+                        } finally {
+                            if (pending.resizedCopy != null) {
+                                pending.resizedCopy.delete();
+                            }
+                        }
+                    } else {
+                        resultedValue.add((String) orderedValue);
+                    }
+                }
+
+                if (!errors.isEmpty()) {
+                    formData.addFormError(FormUtil.getElementParameterName(this), String.join(" ", errors));
+                }
+
                 if (!filePaths.isEmpty()) {
                     result.putTempFilePath(id, filePaths.toArray(new String[]{}));
                 }
 
-                if (remove != null && !remove.isEmpty() && !remove.contains("")) {
+                if (remove != null && !remove.isEmpty() && !remove.contains("") && errors.isEmpty()) {
                     result.putDeleteFilePath(id, remove.toArray(new String[]{}));
+                    List<String> removedIds = new ArrayList<String>();
                     for (String r : remove) {
                         Map<String, String> fileMap = parseFileName(r);
                         String documentId = fileMap.get("documentId");
 
                         if (documentId != null && !documentId.isEmpty()) {
-                            // delete file(s) from mayan
-                            //new DoxisApiHelper().deleteDocument(serverUrl, username, password, customerName, documentId, repositoryName);
+                            removedIds.add(documentId);
                         }
                     }
+                    // delete file(s) from SharePoint in a single batch once the row is stored without them
+                    if (!removedIds.isEmpty() && formData.getPrimaryKeyValue() != null) {
+                        RemoteDeletion.deleteOnceStored(getProperties(), parentForm.getPropertyString(FormUtil.PROPERTY_ID),
+                                parentForm.getPropertyString(FormUtil.PROPERTY_TABLE_NAME), id, formData.getPrimaryKeyValue(), removedIds);
+                    }
                 }
 
                 // formulate values
@@ -317,13 +519,129 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
                 rowSet.add(result);
 
                 String filePathPostfix = "_path";
-                formData.addRequestParameterValues(id + filePathPostfix, new String[]{});
+                formData.addRequestParameterValues(id + filePathPostfix, failedPaths.toArray(new String[]{}));
             }
         }
 
         return rowSet;
     }
 
+    /**
+     * Hashes the newly attached files and looks them up in the dedup index. Files found there are
+     * confirmed with one metadata $batch call, and entries whose file is gone from SharePoint or no
+     * longer has the same length are dropped.
+     *
+     * @param uploadFiles the file to upload for every newly attached file, which is the resized copy of large images
+     * @param hashes filled with the SHA-256 of every file to upload, by value
+     * @return the UniqueId to reuse for each value whose content is already in SharePoint
+     */
+    protected Map<String, String> findDuplicates(DedupIndex index, SharepointAPIHelper helper, Map<String, File> uploadFiles, Map<String, String> hashes) {
+        Map<String, String> duplicates = new HashMap<String, String>();
+        for (Map.Entry<String, File> uploadFile : uploadFiles.entrySet()) {
+            String value = uploadFile.getKey();
+            File file = uploadFile.getValue();
+            try {
+                String hash = DedupIndex.hash(file);
+                hashes.put(value, hash);
+                String documentId = index.get(hash, file.length());
+                if (documentId != null) {
+                    duplicates.put(value, documentId);
+                }
+            } catch (IOException e) {
+                LogUtil.warn(getClassName(), "Unable to hash " + file.getName() + ", uploading it: " + e.getMessage());
+            }
+        }
+        if (duplicates.isEmpty()) {
+            return duplicates;
+        }
+
+        try {
+            Map<String, JSONObject> files = helper.getFilesFromSharePoint(getPropertyString("applicationId"), getPropertyString("tenantName"), getPropertyString("clientId"),
+                    SecurityUtil.decrypt(getPropertyString("clientSecret")), SecurityUtil.decrypt(getPropertyString("refreshToken")), getPropertyString("tenantId"),
+                    getPropertyString("siteName"), new ArrayList<String>(new LinkedHashSet<String>(duplicates.values())));
+            duplicates.entrySet().removeIf(duplicate -> {
+                if (!files.containsKey(duplicate.getValue())) {
+                    // the lookup failed, upload to be safe
+                    return true;
+                }
+                JSONObject file = files.get(duplicate.getValue());
+                if (file == null || !String.valueOf(uploadFiles.get(duplicate.getKey()).length()).equals(file.optString("Length"))) {
+                    index.remove(hashes.get(duplicate.getKey()), duplicate.getValue());
+                    return true;
+                }
+                return false;
+            });
+        } catch (IOException e) {
+            LogUtil.warn(getClassName(), "Unable to confirm duplicate files, uploading them: " + e.getMessage());
+            duplicates.clear();
+        }
+        return duplicates;
+    }
+
+    /**
+     * @return the folder to upload a newly attached file to: the configured folder, or the subfolder
+     *         of the month, of the record id hash or of the app when folder partitioning is enabled
+     */
+    protected String getUploadFolder(FormData formData, String value) {
+        // the record id may not be assigned yet for a new record, spread by file then
+        String recordId = formData.getPrimaryKeyValue();
+        AppDefinition appDef = AppUtil.getCurrentAppDefinition();
+        return getUploadFolder(getProperties(), recordId != null && !recordId.isEmpty() ? recordId : value, appDef != null ? appDef.getAppId() : null);
+    }
+
+    /**
+     * @param recordKey the record id, or the file when there is none, to spread by
+     */
+    protected static String getUploadFolder(Map properties, String recordKey, String appId) {
+        String folderName = properties.get("folderName") != null ? properties.get("folderName").toString() : "";
+        Object partitioning = properties.get("folderPartitioning");
+        String partition = null;
+        if ("date".equals(partitioning)) {
+            partition = String.format("%tY/%<tm", new Date());
+        } else if ("recordHash".equals(partitioning)) {
+            int hash = recordKey.hashCode();
+            partition = String.format("%02x", (hash ^ (hash >>> 16)) & 0xFF);
+        } else if ("appId".equals(partitioning)) {
+            partition = appId;
+        }
+        if (partition == null || partition.isEmpty()) {
+            return folderName;
+        }
+        return folderName.endsWith("/") ? folderName + partition : folderName + "/" + partition;
+    }
+
+    /**
+     * The form whose binder stores this field, which is not the root form when used inside a subform.
+     */
+    protected Form findParentForm() {
+        Element parent = getParent();
+        while (parent != null && !(parent instanceof Form)) {
+            parent = parent.getParent();
+        }
+        return parent != null ? (Form) parent : FormUtil.findRootForm(this);
+    }
+
+    private static File getResizedCopy(File file, File uploadFile) {
+        return uploadFile != null && !uploadFile.equals(file) ? uploadFile : null;
+    }
+
+    private static class PendingUpload {
+        private final String value;
+        private final String fileName;
+        private final File resizedCopy;
+        private final Future<String> upload;
+
+        /**
+         * @param resizedCopy the downscaled copy uploaded instead of the temp file, deleted once the upload is done, or null
+         */
+        PendingUpload(String value, String fileName, File resizedCopy, Future<String> upload) {
+            this.value = value;
+            this.fileName = fileName;
+            this.resizedCopy = resizedCopy;
+            this.upload = upload;
+        }
+    }
+
     @Override
     public String renderTemplate(FormData formData, Map dataModel) {
         String template = "SharePointFileUpload.ftl";
@@ -346,6 +664,7 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
 
         Map<String, String> tempFilePaths = new LinkedHashMap<>();
         Map<String, String> filePaths = new LinkedHashMap<>();
+        Map<String, String> pendingFilePaths = new LinkedHashMap<>();
 
         String filePathPostfix = "_path";
         String id = FormUtil.getElementParameterName(this);
@@ -377,6 +696,14 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
             appVersion = appDef.getVersion().toString();
         }
 
+        // links reference the connection settings through a signed handle
+        String profileId = null;
+        try {
+            profileId = ConnectionProfileRegistry.register(getProperties());
+        } catch (IOException e) {
+            LogUtil.error(getClassName(), e, "Unable to register the connection profile, links fall back to encrypted parameters");
+        }
+
         for (String value : values) {
             // check if the file is in temp file
 
@@ -388,6 +715,12 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
 
             if (file != null) {
                 tempFilePaths.put(value, file.getName());
+            } else if (ChunkRelay.isPath(value)) {
+                // relayed to SharePoint chunk by chunk, collected on submit
+                tempFilePaths.put(value, ChunkRelay.getFileName(value));
+            } else if (value != null && !value.isEmpty() && UploadOutbox.isPending(documentId)) {
+                // still waiting in the upload outbox, nothing to download yet
+                pendingFilePaths.put(value, value);
             } else if (value != null && !value.isEmpty()) {
                 // determine actual path for the file uploads
                 String fileName = value;
@@ -400,6 +733,17 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
                     }
                 }
 
+                if (profileId != null) {
+                    try {
+                        String handle = ConnectionProfileRegistry.createHandle(profileId, documentId, fileName);
+                        String filePath = "/web/json/app/" + appId + "/" + appVersion + "/plugin/ae.gcg.plugins.sharepoint.fileupload.SharePointFileUpload/service?dID=" + documentId + "&action=download&fn=" + encodedFileName + "&h=" + handle;
+                        filePaths.put(filePath, value);
+                        continue;
+                    } catch (IOException e) {
+                        LogUtil.error(getClassName(), e, "Unable to create download handle");
+                    }
+                }
+
                 jsonParams.put("applicationId", applicationId);
                 jsonParams.put("clientId", clientId);
                 jsonParams.put("clientSecret", clientSecret);
@@ -408,7 +752,22 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
                 jsonParams.put("tenantId", tenantId);
                 jsonParams.put("siteName", siteName);
                 jsonParams.put("folderName", folderName);
-
+                jsonParams.put("fileName", fileName);
+                for (String key : ClientSettings.PROPERTY_NAMES) {
+                    jsonParams.put(key, getPropertyString(key));
+                }
+                for (String key : CircuitBreaker.PROPERTY_NAMES) {
+                    jsonParams.put(key, getPropertyString(key));
+                }
+                for (String key : DownloadCache.PROPERTY_NAMES) {
+                    jsonParams.put(key, getPropertyString(key));
+                }
+                for (String key : SharepointAPIHelper.ENDPOINT_PROPERTY_NAMES) {
+                    jsonParams.put(key, getPropertyString(key));
+                }
+                for (String key : SharepointAPIHelper.DOWNLOAD_PROPERTY_NAMES) {
+                    jsonParams.put(key, getPropertyString(key));
+                }
 
                 String params = StringUtil.escapeString(SecurityUtil.encrypt(jsonParams.toString()), StringUtil.TYPE_URL, null);
                 String filePath = "/web/json/app/" + appId + "/" + appVersion + "/plugin/ae.gcg.plugins.sharepoint.fileupload.SharePointFileUpload/service?dID=" + documentId + "&action=download&params=" + params;
@@ -422,11 +781,181 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
         if (!filePaths.isEmpty()) {
             dataModel.put("filePaths", filePaths);
         }
+        if (!pendingFilePaths.isEmpty()) {
+            dataModel.put("pendingFilePaths", pendingFilePaths);
+        }
+        if ("true".equals(getPropertyString("chunkedUpload"))) {
+            dataModel.put("relayChunkSize", Math.max(1, ClientSettings.getInt(getProperties(), "chunkSize", 10)) * 1024L * 1024L);
+        }
 
         String html = FormUtil.generateElementHtml(this, formData, template, dataModel);
         return html;
     }
 
+    /**
+     * Answers a call rejected by the circuit breaker of the site with 503, telling the browser when to try again.
+     */
+    protected void sendUnavailable(HttpServletResponse response, CircuitBreaker.RejectedException e) throws IOException {
+        response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Relays the SharePoint response to the browser, and stores a complete 200 response in the cache if given.
+     *
+     * @return the number of bytes relayed
+     */
+    protected long writeDownload(HttpServletResponse response, Response sharepointResponse, String fileName, DownloadCache cache, String documentId) throws IOException {
+        int status = sharepointResponse.code();
+        response.setStatus(status);
+        for (String name : FORWARDED_RESPONSE_HEADERS) {
+            String value = sharepointResponse.header(name);
+            if (value != null) {
+                response.setHeader(name, value);
+            }
+        }
+        if (sharepointResponse.header("Accept-Ranges") == null) {
+            response.setHeader("Accept-Ranges", "bytes");
+        }
+        if (status == HttpServletResponse.SC_NOT_MODIFIED || status == HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+            return 0;
+        }
+
+        response.setContentType("application/octet-stream");
+        response.setHeader("Content-Disposition", "attachment; filename=" + fileName);
+        long contentLength = sharepointResponse.body().contentLength();
+        if (contentLength >= 0) {
+            response.setHeader("Content-Length", String.valueOf(contentLength));
+        }
+
+        File cacheFile = cache != null && status == HttpServletResponse.SC_OK ? cache.createTempFile() : null;
+        OutputStream cacheStream = cacheFile != null ? new FileOutputStream(cacheFile) : null;
+        boolean complete = false;
+        long written = 0;
+        try {
+            InputStream documentStream = sharepointResponse.body().byteStream();
+            ServletOutputStream outputStream = response.getOutputStream();
+            byte[] buffer = new byte[65536];
+
+            int bytesRead;
+            while ((bytesRead = documentStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+                if (cacheStream != null) {
+                    cacheStream.write(buffer, 0, bytesRead);
+                }
+                written += bytesRead;
+            }
+            outputStream.flush();
+            complete = contentLength < 0 || written == contentLength;
+        } finally {
+            if (cacheStream != null) {
+                cacheStream.close();
+                if (complete) {
+                    cache.commit(documentId, sharepointResponse.header("ETag"), sharepointResponse.header("Last-Modified"), cacheFile);
+                } else {
+                    cacheFile.delete();
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Serves a cached file that SharePoint confirmed to be unchanged. Tomcat sends it with sendfile once the
+     * request is done when its connector supports it, the file is copied to the response otherwise.
+     */
+    protected void writeCachedDownload(HttpServletRequest request, HttpServletResponse response, DownloadCache.Entry cached, String fileName) throws IOException {
+        response.setHeader("ETag", cached.getEtag());
+        if (cached.getLastModified() != null && !cached.getLastModified().isEmpty()) {
+            response.setHeader("Last-Modified", cached.getLastModified());
+        }
+        response.setHeader("Accept-Ranges", "bytes");
+        if (isNotModified(request, cached)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType("application/octet-stream");
+        response.setHeader("Content-Disposition", "attachment; filename=" + fileName);
+        long size = cached.getFile().length();
+        response.setHeader("Content-Length", String.valueOf(size));
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, cached.getFile().getCanonicalPath());
+            request.setAttribute(SENDFILE_START, 0L);
+            request.setAttribute(SENDFILE_END, size);
+            return;
+        }
+        Files.copy(cached.getFile().toPath(), response.getOutputStream());
+        response.getOutputStream().flush();
+    }
+
+    /**
+     * Evaluates the validators of the browser against the cached file: If-None-Match when sent, with the
+     * weak comparison of RFC 7232, and otherwise If-Modified-Since against its Last-Modified.
+     *
+     * @return true if the copy held by the browser is the cached one
+     */
+    protected boolean isNotModified(HttpServletRequest request, DownloadCache.Entry cached) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            String etag = getOpaqueTag(cached.getEtag());
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if ("*".equals(candidate) || getOpaqueTag(candidate).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String lastModified = cached.getLastModified();
+        if (lastModified == null || lastModified.isEmpty()) {
+            return false;
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince != -1 && ZonedDateTime.parse(lastModified, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() <= ifModifiedSince;
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static String getOpaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Sends the browser to the pre-authenticated SharePoint URL of the file. The URL grants access on its
+     * own until it expires, so neither the redirect nor the referrer may be kept.
+     */
+    protected void redirectDownload(HttpServletResponse response, String downloadUrl) throws IOException {
+        response.setHeader("Cache-Control", "no-store");
+        response.setHeader("Referrer-Policy", "no-referrer");
+        response.sendRedirect(downloadUrl);
+    }
+
+    /**
+     * Serves the SharePoint response, or the cached file if SharePoint confirmed it is unchanged, and closes the response.
+     */
+    protected void relayDownload(HttpServletRequest request, HttpServletResponse response, Response sharepointResponse, DownloadCache cache, DownloadCache.Entry cached, String fileName, String documentId, String tenantName, String siteName, SharepointMetrics.Timer timer) {
+        try {
+            if (cached != null && sharepointResponse.code() == HttpServletResponse.SC_NOT_MODIFIED) {
+                cache.recordHit();
+                writeCachedDownload(request, response, cached, fileName);
+            } else {
+                if (cache != null) {
+                    cache.recordMiss();
+                }
+                SharepointMetrics.addBytes("download", tenantName, siteName, writeDownload(response, sharepointResponse, fileName, cache, documentId));
+            }
+            timer.success();
+        } catch (Exception e) {
+            LogUtil.warn(getClassName(), "Unable to relay the download of " + documentId + ": " + e.getMessage());
+        } finally {
+            sharepointResponse.close();
+        }
+    }
+
     @Override
     public void webService(javax.servlet.http.HttpServletRequest request, javax.servlet.http.HttpServletResponse response) throws IOException, ServletException {
         String nonce = request.getParameter("_nonce");
@@ -439,10 +968,101 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
         String action = request.getParameter("action");
         String documentId = request.getParameter("dID");
 
+        if ("stats".equals(action)) {
+            if (!WorkflowUtil.isCurrentUserInRole(WorkflowUtil.ROLE_ADMIN)) {
+                response.sendError(HttpServletResponse.SC_FORBIDDEN, ResourceBundleUtil.getMessage("general.error.error403"));
+                return;
+            }
+            JSONObject stats = new JSONObject();
+            stats.put("pools", SharepointClientRegistry.getPoolStatistics());
+            stats.put("limiters", AdaptiveConcurrencyLimiter.getStatistics());
+            stats.put("breakers", CircuitBreaker.getStatistics());
+            stats.put("downloadCaches", DownloadCache.getStatistics());
+            stats.put("eagerUploads", EagerUploads.size());
+            stats.put("chunkRelays", ChunkRelay.size());
+            response.setContentType("application/json");
+            stats.write(response.getWriter());
+            return;
+        }
+
+        if ("metrics".equals(action)) {
+            if (!WorkflowUtil.isCurrentUserInRole(WorkflowUtil.ROLE_ADMIN)) {
+                response.sendError(HttpServletResponse.SC_FORBIDDEN, ResourceBundleUtil.getMessage("general.error.error403"));
+                return;
+            }
+            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            response.getWriter().write(SharepointMetrics.toPrometheus());
+            return;
+        }
+
+        if ("outbox".equals(action)) {
+            if (!WorkflowUtil.isCurrentUserInRole(WorkflowUtil.ROLE_ADMIN)) {
+                response.sendError(HttpServletResponse.SC_FORBIDDEN, ResourceBundleUtil.getMessage("general.error.error403"));
+                return;
+            }
+            JSONObject status = "drain".equals(request.getParameter("op")) ? UploadOutbox.drain() : UploadOutbox.getStatus();
+            response.setContentType("application/json");
+            status.write(response.getWriter());
+            return;
+        }
+
+        if ("downloadAll".equals(action)) {
+            // dID, fn and h are repeated for every file, possibly of several records
+            String[] documentIds = request.getParameterValues("dID");
+            String[] fileNames = request.getParameterValues("fn");
+            String[] handles = request.getParameterValues("h");
+            if ("session".equals(request.getParameter("selection"))) {
+                // rows selected with the bulk action, too many to fit in the URL
+                HttpSession session = request.getSession(false);
+                String[][] selection = session != null ? (String[][]) session.getAttribute(SharePointZipDownloadAction.SELECTION_ATTRIBUTE) : null;
+                if (selection != null) {
+                    documentIds = selection[0];
+                    fileNames = selection[1];
+                    handles = selection[2];
+                }
+            }
+            if (documentIds == null || fileNames == null || handles == null || documentIds.length != fileNames.length
+                    || documentIds.length != handles.length || documentIds.length > MAX_ZIP_FILES) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            ZipDownload zipDownload = new ZipDownload();
+            for (int i = 0; i < documentIds.length; i++) {
+                Map<String, Object> profile = ConnectionProfileRegistry.resolve(handles[i], documentIds[i], fileNames[i]);
+                if (profile == null) {
+                    response.sendError(HttpServletResponse.SC_FORBIDDEN, ResourceBundleUtil.getMessage("general.error.error403"));
+                    return;
+                }
+                zipDownload.add(profile, documentIds[i], fileNames[i]);
+            }
+
+            response.setContentType("application/zip");
+            response.setHeader("Content-Disposition", "attachment; filename=attachments.zip");
+            try {
+                zipDownload.write(response.getOutputStream(), ZipDownload.DEFAULT_WINDOW);
+            } catch (IOException e) {
+                LogUtil.warn(getClassName(), "Unable to stream the ZIP of " + documentIds.length + " files: " + e.getMessage());
+            }
+            return;
+        }
+
         if ("download".equals(action) && (documentId != null && !documentId.isEmpty())) {
-            // Download yet to implement.
-            String params = SecurityUtil.decrypt(request.getParameter("params"));
-            JSONObject paramsObject = new JSONObject(params);
+            JSONObject paramsObject;
+            String fileName;
+            if (request.getParameter("h") != null) {
+                fileName = request.getParameter("fn");
+                Map<String, Object> profile = ConnectionProfileRegistry.resolve(request.getParameter("h"), documentId, fileName);
+                if (profile == null) {
+                    response.sendError(HttpServletResponse.SC_FORBIDDEN, ResourceBundleUtil.getMessage("general.error.error403"));
+                    return;
+                }
+                paramsObject = new JSONObject(profile);
+            } else {
+                // links rendered before download handles were introduced
+                String params = SecurityUtil.decrypt(request.getParameter("params"));
+                paramsObject = new JSONObject(params);
+                fileName = paramsObject.getString("fileName");
+            }
             String applicationId = paramsObject.getString("applicationId");
             String clientId = paramsObject.getString("clientId");
             String clientSecret = paramsObject.getString("clientSecret");
@@ -451,33 +1071,92 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
             String tenantId = paramsObject.getString("tenantId");
             String siteName = paramsObject.getString("siteName");
             String folderName = paramsObject.getString("folderName");
-            String fileName = paramsObject.getString("fileName");
+            boolean redirect = "redirect".equals(paramsObject.optString("downloadMode"));
 
-            Response sharepointResponse = new SharepointAPIHelper().downloadFileFromSharePoint(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, folderName, documentId);
-            try {
+            // range requests bypass the node-local cache and go straight to SharePoint, as do redirected downloads
+            DownloadCache cache = request.getHeader("Range") == null && !redirect ? DownloadCache.getInstance(paramsObject.toMap()) : null;
+            DownloadCache.Entry cached = cache != null ? cache.get(documentId) : null;
 
-                Headers headers = sharepointResponse.headers();
-                Iterator<String> headerIt = headers.names().iterator();
-                response.setContentType("application/octet-stream");
-                response.setHeader("Content-Disposition", "attachment; filename=" + fileName);
+            if (cached != null && isNotModified(request, cached)) {
+                // the browser already holds the cached copy
+                cache.recordHit();
+                writeCachedDownload(request, response, cached, fileName);
+                return;
+            }
 
-                InputStream documentStream = sharepointResponse.body().byteStream();
-                byte[] buffer = new byte[4096];
+            Map<String, String> conditionalHeaders = new HashMap<>();
+            if (cached != null) {
+                // revalidate the cached copy, served in full unless SharePoint has a newer one
+                conditionalHeaders.put("If-None-Match", cached.getEtag());
+            } else {
+                // let the browser resume, show progress and revalidate its cached copy
+                for (String name : FORWARDED_REQUEST_HEADERS) {
+                    String value = request.getHeader(name);
+                    if (value != null) {
+                        conditionalHeaders.put(name, value);
+                    }
+                }
+            }
 
-                while (true) {
-                    int bytesRead;
-                    if ((bytesRead = documentStream.read(buffer)) == -1) {
-                        response.getOutputStream().flush();
-                        break;
+            SharepointAPIHelper helper = new SharepointAPIHelper(paramsObject.toMap());
+            if (request.isAsyncSupported()) {
+                // release the request thread while waiting for SharePoint, the body is relayed once it answers
+                AsyncContext asyncContext = request.startAsync();
+                asyncContext.setTimeout(0);
+                SharepointMetrics.Timer timer = SharepointMetrics.startDetached(SharepointMetrics.PHASE_DOWNLOAD_RELAY, tenantName, siteName);
+                CompletableFuture<String> downloadUrl = redirect ? helper.getDownloadUrlAsync(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, documentId).exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    LogUtil.warn(getClassName(), "Unable to get the download URL of " + documentId + ", proxying it: " + cause.getMessage());
+                    return null;
+                }) : CompletableFuture.completedFuture(null);
+                downloadUrl.thenCompose(url -> url != null ? CompletableFuture.completedFuture((Response) null)
+                        : helper.downloadAsync(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, documentId, conditionalHeaders)).whenCompleteAsync((sharepointResponse, e) -> {
+                    try {
+                        if (e != null) {
+                            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                            LogUtil.error(getClassName(), cause, "Unable to download " + documentId);
+                            if (!response.isCommitted() && cause instanceof CircuitBreaker.RejectedException) {
+                                sendUnavailable(response, (CircuitBreaker.RejectedException) cause);
+                            } else if (!response.isCommitted()) {
+                                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                            }
+                        } else if (sharepointResponse == null) {
+                            redirectDownload(response, downloadUrl.join());
+                            timer.success();
+                        } else {
+                            relayDownload(request, response, sharepointResponse, cache, cached, fileName, documentId, tenantName, siteName, timer);
+                        }
+                    } catch (IOException ex) {
+                        LogUtil.warn(getClassName(), "Unable to relay the download of " + documentId + ": " + ex.getMessage());
+                    } finally {
+                        timer.close();
+                        asyncContext.complete();
                     }
+                }, DownloadExecutors.getRelayExecutor());
+                return;
+            }
 
-                    response.getOutputStream().write(buffer, 0, bytesRead);
+            if (redirect) {
+                String downloadUrl = null;
+                try {
+                    downloadUrl = helper.getDownloadUrl(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, documentId);
+                } catch (IOException e) {
+                    LogUtil.warn(getClassName(), "Unable to get the download URL of " + documentId + ", proxying it: " + e.getMessage());
+                }
+                if (downloadUrl != null) {
+                    redirectDownload(response, downloadUrl);
+                    return;
                 }
-            } catch (Exception e) {
-                LogUtil.info("Exeption occurred while downloading: ", e.getMessage());
             }
 
-
+            try (SharepointMetrics.Timer timer = SharepointMetrics.start(SharepointMetrics.PHASE_DOWNLOAD_RELAY, tenantName, siteName)) {
+                Response sharepointResponse = helper.downloadFileFromSharePoint(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, folderName, documentId, conditionalHeaders);
+                relayDownload(request, response, sharepointResponse, cache, cached, fileName, documentId, tenantName, siteName, timer);
+            } catch (CircuitBreaker.RejectedException e) {
+                LogUtil.warn(getClassName(), "Download of " + documentId + " rejected: " + e.getMessage());
+                sendUnavailable(response, e);
+            }
+            return;
         }
 
 
@@ -493,10 +1172,15 @@ public class SharePointFileUpload extends Element implements FormBuilderPaletteE
                         if (file != null && file.getOriginalFilename() != null && !file.getOriginalFilename().isEmpty()) {
                             String ext = file.getOriginalFilename().substring(file.getOriginalFilename().lastIndexOf(".")).toLowerCase();
                             if (fileType != null && (fileType.isEmpty() || fileType.contains(ext + ";") || fileType.endsWith(ext))) {
-                                String path = FileManager.storeFile(file);
-                                obj.put("path", path);
-                                obj.put("filename", file.getOriginalFilename());
-                                obj.put("newFilename", path.substring(path.lastIndexOf(File.separator) + 1));
+                                if (request.getParameter("dzuuid") != null && request.getParameter("_relay") != null) {
+                                    relayChunk(request, response, paramName, appId, file, obj);
+                                } else {
+                                    String path = FileManager.storeFile(file);
+                                    startEagerUpload(request.getParameter("_eager"), paramName, appId, path);
+                                    obj.put("path", path);
+                                    obj.put("filename", file.getOriginalFilename());
+                                    obj.put("newFilename", path.substring(path.lastIndexOf(File.separator) + 1));
+                                }
                             } else {
                                 obj.put("error", ResourceBundleUtil.getMessage("form.fileupload.fileType.msg.invalidFileType"));
                             }
@@ -0,0 +1,149 @@
+package ae.gcg.plugins.sharepoint.fileupload;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
+import org.joget.apps.app.service.AppPluginUtil;
+import org.joget.apps.app.service.AppUtil;
+import org.joget.apps.datalist.model.DataList;
+import org.joget.apps.datalist.model.DataListActionDefault;
+import org.joget.apps.datalist.model.DataListActionResult;
+import org.joget.apps.datalist.model.DataListColumn;
+import org.joget.apps.datalist.model.DataListColumnFormat;
+import org.joget.apps.datalist.service.DataListService;
+import org.joget.commons.util.LogUtil;
+import org.joget.workflow.util.WorkflowUtil;
+
+/**
+ * Bulk action downloading the SharePoint files of the selected rows as one ZIP. The files are
+ * read from the column formatted with {@link SharePointFileFormatter}, which signs their handles.
+ * The selection is kept in the session, as the parameters of hundreds of files would not fit in
+ * the URL, and the browser is sent to the downloadAll action of the upload element.
+ */
+public class SharePointZipDownloadAction extends DataListActionDefault {
+
+    private final static String MESSAGE_PATH = "messages/SharePointZipDownloadAction";
+
+    /**
+     * Session attribute holding the dID, fn and h parameters of the last selection.
+     */
+    public final static String SELECTION_ATTRIBUTE = SharePointZipDownloadAction.class.getName() + ".selection";
+
+    @Override
+    public String getLinkLabel() {
+        String label = getPropertyString("label");
+        if (label == null || label.isEmpty()) {
+            label = AppPluginUtil.getMessage("ae.gcg.plugins.sharepoint.fileupload.zipAction.defaultLabel", getClassName(), MESSAGE_PATH);
+        }
+        return label;
+    }
+
+    @Override
+    public String getHref() {
+        return null;
+    }
+
+    @Override
+    public String getTarget() {
+        return "post";
+    }
+
+    @Override
+    public String getHrefParam() {
+        return null;
+    }
+
+    @Override
+    public String getHrefColumn() {
+        return null;
+    }
+
+    @Override
+    public String getConfirmation() {
+        return null;
+    }
+
+    @Override
+    public DataListActionResult executeAction(DataList dataList, String[] rowKeys) {
+        HttpServletRequest request = WorkflowUtil.getHttpServletRequest();
+        if (request == null || rowKeys == null || rowKeys.length == 0) {
+            return null;
+        }
+
+        DataListColumn column = null;
+        SharePointFileFormatter formatter = null;
+        for (DataListColumn c : dataList.getColumns()) {
+            if (c.getName().equals(getPropertyString("column")) && c.getFormats() != null) {
+                for (DataListColumnFormat format : c.getFormats()) {
+                    if (format instanceof SharePointFileFormatter) {
+                        column = c;
+                        formatter = (SharePointFileFormatter) format;
+                    }
+                }
+            }
+        }
+        if (formatter == null) {
+            LogUtil.warn(getClassName(), "Column " + getPropertyString("column") + " of " + dataList.getId() + " is not formatted with the SharePoint file formatter");
+            return null;
+        }
+
+        Set<String> selected = new HashSet<String>(Arrays.asList(rowKeys));
+        String keyColumn = dataList.getBinder().getPrimaryKeyColumnName();
+        List<String[]> files = new ArrayList<String[]>();
+        for (Object row : dataList.getRows()) {
+            Object key = DataListService.evaluateColumnValueFromRow(row, keyColumn);
+            if (key != null && selected.contains(key.toString())) {
+                files.addAll(formatter.getZipFiles(dataList, column, DataListService.evaluateColumnValueFromRow(row, column.getName())));
+            }
+        }
+        if (files.isEmpty()) {
+            return null;
+        }
+
+        String[][] selection = new String[3][files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            selection[0][i] = files.get(i)[0];
+            selection[1][i] = files.get(i)[1];
+            selection[2][i] = files.get(i)[2];
+        }
+        request.getSession().setAttribute(SELECTION_ATTRIBUTE, selection);
+
+        DataListActionResult result = new DataListActionResult();
+        result.setType(DataListActionResult.TYPE_REDIRECT);
+        result.setUrl(formatter.getServiceUrl() + "?action=downloadAll&selection=session");
+        return result;
+    }
+
+    @Override
+    public String getName() {
+        return "Sharepoint ZIP Download Action";
+    }
+
+    @Override
+    public String getVersion() {
+        return "8.0";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Download the Sharepoint files of the selected rows as one ZIP";
+    }
+
+    @Override
+    public String getLabel() {
+        return "Sharepoint ZIP Download";
+    }
+
+    @Override
+    public String getClassName() {
+        return this.getClass().getName();
+    }
+
+    @Override
+    public String getPropertyOptions() {
+        return AppUtil.readPluginResource(getClassName(), "/properties/SharePointZipDownloadAction.json", null, true, MESSAGE_PATH);
+    }
+}
@@ -0,0 +1,182 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.joget.commons.util.LogUtil;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process cache of ACS access tokens keyed by tenant, client and resource.
+ * Tokens are refreshed in the background shortly before they expire, and
+ * concurrent callers share a single in-flight refresh. While a refresh is
+ * running, callers keep getting the last token that is still valid.
+ */
+public class AccessTokenCache {
+    private static final long REFRESH_AHEAD_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long FAILED_REFRESH_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Map<String, AccessToken> tokens = new ConcurrentHashMap<>();
+    private static final Map<String, CompletableFuture<AccessToken>> refreshes = new ConcurrentHashMap<>();
+    private static final Map<String, Long> failedRefreshes = new ConcurrentHashMap<>();
+    private static final ThreadPoolExecutor refreshExecutor;
+
+    static {
+        refreshExecutor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "sharepoint-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public interface TokenLoader {
+        AccessToken load() throws IOException;
+    }
+
+    public interface AsyncTokenLoader {
+        CompletableFuture<AccessToken> load();
+    }
+
+    public static String getKey(String tenantId, String clientId, String resource) {
+        return tenantId + "|" + clientId + "|" + resource;
+    }
+
+    public static String getToken(String key, TokenLoader loader) throws IOException {
+        long now = System.currentTimeMillis();
+        AccessToken current = tokens.get(key);
+        if (current != null && !current.isRefreshDue(now)) {
+            return current.getValue();
+        }
+
+        boolean valid = current != null && !current.isExpired(now);
+        if (valid) {
+            // serve the current token and refresh in the background, unless the last attempt just failed
+            Long failedAt = failedRefreshes.get(key);
+            if (failedAt == null || now - failedAt > FAILED_REFRESH_BACKOFF_MILLIS) {
+                refresh(key, () -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return loader.load();
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, refreshExecutor));
+            }
+            return current.getValue();
+        }
+
+        try {
+            // nobody has a usable token, so the caller might as well do the work
+            return refresh(key, () -> {
+                CompletableFuture<AccessToken> loaded = new CompletableFuture<>();
+                try {
+                    loaded.complete(loader.load());
+                } catch (Throwable e) {
+                    loaded.completeExceptionally(e);
+                }
+                return loaded;
+            }).get().getValue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for access token", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Like {@link #getToken}, but without blocking: a missing or expired token is loaded with the
+     * asynchronous loader, e.g. an enqueued OkHttp call, and concurrent callers share the same load.
+     */
+    public static CompletableFuture<String> getTokenAsync(String key, AsyncTokenLoader loader) {
+        long now = System.currentTimeMillis();
+        AccessToken current = tokens.get(key);
+        if (current != null && !current.isRefreshDue(now)) {
+            return CompletableFuture.completedFuture(current.getValue());
+        }
+
+        if (current != null && !current.isExpired(now)) {
+            Long failedAt = failedRefreshes.get(key);
+            if (failedAt == null || now - failedAt > FAILED_REFRESH_BACKOFF_MILLIS) {
+                refresh(key, loader);
+            }
+            return CompletableFuture.completedFuture(current.getValue());
+        }
+        return refresh(key, loader).thenApply(AccessToken::getValue);
+    }
+
+    /**
+     * Drops the cached token, e.g. after SharePoint rejected it with a 401.
+     */
+    public static void invalidate(String key) {
+        tokens.remove(key);
+    }
+
+    public static void clear() {
+        tokens.clear();
+        failedRefreshes.clear();
+    }
+
+    private static CompletableFuture<AccessToken> refresh(String key, AsyncTokenLoader loader) {
+        CompletableFuture<AccessToken> created = new CompletableFuture<>();
+        CompletableFuture<AccessToken> existing = refreshes.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing;
+        }
+
+        CompletableFuture<AccessToken> loading;
+        try {
+            loading = loader.load();
+        } catch (Throwable e) {
+            loading = new CompletableFuture<>();
+            loading.completeExceptionally(e);
+        }
+        loading.whenComplete((token, e) -> {
+            if (e == null) {
+                tokens.put(key, token);
+                failedRefreshes.remove(key);
+                refreshes.remove(key, created);
+                created.complete(token);
+            } else {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                failedRefreshes.put(key, System.currentTimeMillis());
+                refreshes.remove(key, created);
+                LogUtil.warn(AccessTokenCache.class.getName(), "Access token refresh failed: " + cause.getMessage());
+                created.completeExceptionally(cause);
+            }
+        });
+        return created;
+    }
+
+    public static class AccessToken {
+        private final String value;
+        private final long expiresAt;
+
+        public AccessToken(String value, long expiresInSeconds) {
+            this.value = value;
+            this.expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiresInSeconds);
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        boolean isRefreshDue(long now) {
+            return now >= expiresAt - REFRESH_AHEAD_MILLIS;
+        }
+    }
+}
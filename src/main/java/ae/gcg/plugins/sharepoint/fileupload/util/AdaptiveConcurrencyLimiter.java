@@ -0,0 +1,135 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * AIMD concurrency limit per tenant. The limit grows by one per window of
+ * successful calls and is halved when SharePoint throttles, at most once per
+ * second so that a burst of 429s only counts once.
+ */
+public class AdaptiveConcurrencyLimiter {
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = 64;
+    private static final int INITIAL_LIMIT = 8;
+    private static final long DECREASE_INTERVAL_MILLIS = 1000;
+    private static final long ACQUIRE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final Map<String, AdaptiveConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private double limit = INITIAL_LIMIT;
+    private int inFlight = 0;
+    private long lastDecrease = 0;
+
+    public enum Outcome {
+        SUCCESS, THROTTLED, IGNORED
+    }
+
+    public static AdaptiveConcurrencyLimiter forKey(String key) {
+        return limiters.computeIfAbsent(key, k -> new AdaptiveConcurrencyLimiter());
+    }
+
+    public static JSONObject getStatistics() {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, AdaptiveConcurrencyLimiter> entry : limiters.entrySet()) {
+            AdaptiveConcurrencyLimiter limiter = entry.getValue();
+            synchronized (limiter) {
+                JSONObject limiterStats = new JSONObject();
+                limiterStats.put("limit", (int) limiter.limit);
+                limiterStats.put("inFlight", limiter.inFlight);
+                limiterStats.put("waiting", limiter.waiters.size());
+                stats.put(entry.getKey(), limiterStats);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return a future completed once a permit is granted
+     */
+    public synchronized CompletableFuture<Void> acquireAsync() {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        waiters.add(waiter);
+        return waiter;
+    }
+
+    /**
+     * Like {@link #acquireAsync()}, but fails the future with an IOException if no permit is granted
+     * within the acquire timeout.
+     */
+    public CompletableFuture<Void> acquireAsync(ScheduledExecutorService scheduler) {
+        CompletableFuture<Void> waiter = acquireAsync();
+        if (!waiter.isDone()) {
+            scheduler.schedule(() -> {
+                boolean removed;
+                synchronized (this) {
+                    removed = waiters.remove(waiter);
+                }
+                if (removed) {
+                    waiter.completeExceptionally(new IOException("Timed out waiting for a SharePoint request slot"));
+                }
+            }, ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return waiter;
+    }
+
+    public void acquire() throws IOException {
+        CompletableFuture<Void> waiter = acquireAsync();
+        try {
+            waiter.get(ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            synchronized (this) {
+                if (!waiters.remove(waiter)) {
+                    // the permit was granted just after the wait ended, keep it
+                    return;
+                }
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Timed out waiting for a SharePoint request slot", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public void release(Outcome outcome) {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            if (outcome == Outcome.SUCCESS) {
+                limit = Math.min(MAX_LIMIT, limit + 1.0 / limit);
+            } else if (outcome == Outcome.THROTTLED) {
+                long now = System.currentTimeMillis();
+                if (now - lastDecrease >= DECREASE_INTERVAL_MILLIS) {
+                    limit = Math.max(MIN_LIMIT, limit / 2);
+                    lastDecrease = now;
+                }
+            }
+            while (inFlight < (int) limit && !waiters.isEmpty()) {
+                inFlight++;
+                granted.add(waiters.poll());
+            }
+        }
+        for (CompletableFuture<Void> waiter : granted) {
+            waiter.complete(null);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.joget.commons.util.LogUtil;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relays the chunks of a file sent by dropzone straight into a SharePoint upload session, so a
+ * large file is never stored on the server and only one chunk of it is held at a time.
+ * <p>
+ * Chunks must arrive in order. A chunk at an offset SharePoint already acknowledged, e.g. one
+ * sent again after a dropped connection, is answered without relaying it, so the browser
+ * resumes from the last committed chunk. A chunk that failed without telling whether SharePoint
+ * committed it (an I/O error or a 5xx) is sent again by the browser, and if SharePoint then
+ * refuses it as already committed, the session resumes after it. Once the last chunk is relayed
+ * the file is handed to {@link EagerUploads} under a relay path that the form submit collects
+ * like an eager upload.
+ * <p>
+ * Sessions are kept in memory on the node that received the first chunk. A session idle for
+ * longer than {@link #IDLE_TTL_MILLIS} is dropped and its partial file deleted from SharePoint.
+ */
+public class ChunkRelay {
+    public static final String PATH_PREFIX = "relay:";
+
+    private static final long IDLE_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+
+    private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    public static boolean isPath(String value) {
+        return value != null && value.startsWith(PATH_PREFIX);
+    }
+
+    /**
+     * @return the name of the file uploaded under a relay path
+     */
+    public static String getFileName(String path) {
+        return path.substring(path.indexOf('/') + 1);
+    }
+
+    /**
+     * Relays one chunk of a file.
+     *
+     * @param key identifies the file among the uploads of all forms, e.g. the field and the dropzone UUID of the file
+     * @param connection connection profile of the field, credentials in plain text
+     * @param offset position of the chunk in the file
+     * @param totalSize length of the whole file
+     * @return the relay path of the file once its last chunk is relayed, null before
+     * @throws OffsetMismatchException if the chunk does not start where the previous one ended
+     * @throws IOException if SharePoint rejects the chunk, which can then be sent again
+     */
+    public static String relay(String key, Map<String, Object> connection, String folderName, String fileName, long totalSize, long offset, MultipartFile chunk) throws IOException {
+        sweep();
+        Session session = sessions.get(key);
+        if (session == null) {
+            if (offset != 0) {
+                throw new OffsetMismatchException(0);
+            }
+            Session created = new Session(connection, folderName, fileName, totalSize);
+            session = sessions.putIfAbsent(key, created);
+            if (session == null) {
+                session = created;
+            }
+        }
+
+        synchronized (session) {
+            session.lastActivity = System.currentTimeMillis();
+            if (session.path != null) {
+                // the response to the last chunk was lost
+                return session.path;
+            }
+            if (offset < session.offset) {
+                return null;
+            }
+            if (offset > session.offset) {
+                throw new OffsetMismatchException(session.offset);
+            }
+
+            SharepointAPIHelper helper = new SharepointAPIHelper(connection);
+            String applicationId = getString(connection, "applicationId");
+            String tenantName = getString(connection, "tenantName");
+            String clientId = getString(connection, "clientId");
+            String clientSecret = getString(connection, "clientSecret");
+            String refreshToken = getString(connection, "refreshToken");
+            String tenantId = getString(connection, "tenantId");
+            String siteName = getString(connection, "siteName");
+            if (session.uniqueId == null) {
+                session.uniqueId = helper.startChunkedUpload(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, session.folderName, session.fileName);
+            }
+
+            boolean last = offset + chunk.getSize() >= session.totalSize;
+            try {
+                session.offset = helper.uploadChunk(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName,
+                        session.uniqueId, session.uploadId, offset, new ChunkRequestBody(chunk), last);
+                session.unconfirmed = false;
+            } catch (IOException e) {
+                if (!session.unconfirmed || !SharepointAPIHelper.isRefused(e)) {
+                    session.unconfirmed = SharepointAPIHelper.isIndeterminate(e);
+                    throw e;
+                }
+                // the chunk was committed before the failure, unless a refused FinishUpload comes from a session that is gone
+                session.unconfirmed = false;
+                if (last && helper.getFileLength(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, session.uniqueId) != session.totalSize) {
+                    throw e;
+                }
+                session.offset = offset + chunk.getSize();
+            }
+            if (!last) {
+                return null;
+            }
+            session.path = PATH_PREFIX + UUID.randomUUID() + "/" + session.fileName;
+            EagerUploads.add(session.path, CompletableFuture.completedFuture(session.uniqueId), session.folderName, session.fileName, connection);
+            LogUtil.info(ChunkRelay.class.getName(), "Relayed " + session.fileName + " (" + session.totalSize + " bytes) to " + session.uniqueId);
+            return session.path;
+        }
+    }
+
+    public static int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Drops the sessions idle for longer than the TTL, deleting the partial files of the unfinished ones.
+     */
+    static void sweep() {
+        long expired = System.currentTimeMillis() - IDLE_TTL_MILLIS;
+        for (Iterator<Map.Entry<String, Session>> i = sessions.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Session> entry = i.next();
+            Session session = entry.getValue();
+            if (session.lastActivity < expired && sessions.remove(entry.getKey(), session) && session.path == null && session.uniqueId != null) {
+                LogUtil.info(ChunkRelay.class.getName(), "Deleting the partial upload " + session.uniqueId + " of " + session.fileName);
+                RemoteDeletion.delete(ConnectionProfileRegistry.toProperties(session.connection), Collections.singletonList(session.uniqueId));
+            }
+        }
+    }
+
+    public static void clear() {
+        sessions.clear();
+    }
+
+    private static String getString(Map<String, Object> connection, String key) {
+        Object value = connection.get(key);
+        return value != null ? value.toString() : "";
+    }
+
+    /**
+     * Thrown for a chunk that does not start where the previous one ended.
+     */
+    public static class OffsetMismatchException extends IOException {
+        private final long expectedOffset;
+
+        OffsetMismatchException(long expectedOffset) {
+            super("Expected the chunk at offset " + expectedOffset);
+            this.expectedOffset = expectedOffset;
+        }
+
+        public long getExpectedOffset() {
+            return expectedOffset;
+        }
+    }
+
+    /**
+     * Streams the received chunk through a fixed-size buffer. The chunk is opened again on every
+     * write, so the request can be retried with a fresh digest.
+     */
+    private static class ChunkRequestBody extends RequestBody {
+        private final MultipartFile chunk;
+
+        ChunkRequestBody(MultipartFile chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return OCTET_STREAM;
+        }
+
+        @Override
+        public long contentLength() {
+            return chunk.getSize();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            byte[] buffer = new byte[FileRequestBody.BUFFER_SIZE];
+            long remaining = chunk.getSize();
+            try (InputStream in = chunk.getInputStream()) {
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        throw new EOFException("Chunk of " + chunk.getOriginalFilename() + " is shorter than its Content-Length of " + chunk.getSize());
+                    }
+                    sink.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+    }
+
+    private static class Session {
+        private final Map<String, Object> connection;
+        private final String folderName;
+        private final String fileName;
+        private final long totalSize;
+        private final String uploadId = UUID.randomUUID().toString();
+        private volatile long lastActivity = System.currentTimeMillis();
+        private String uniqueId;
+        private long offset;
+        private boolean unconfirmed;
+        private String path;
+
+        Session(Map<String, Object> connection, String folderName, String fileName, long totalSize) {
+            this.connection = connection;
+            this.folderName = folderName;
+            this.fileName = fileName;
+            this.totalSize = totalSize;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.joget.commons.util.LogUtil;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulkhead and circuit breaker per tenant and site (or tenant and host for calls to ACS), so that
+ * an outage of SharePoint fails calls fast instead of holding request threads until they time out.
+ * <p>
+ * The bulkhead caps the calls in flight, including the ones waiting for a permit of the
+ * {@link AdaptiveConcurrencyLimiter}, and rejects calls beyond it. The breaker opens once the share
+ * of failed (I/O errors and 5xx responses) or slow calls among the last {@link #WINDOW_SIZE} reaches
+ * the failure rate, rejecting calls for the open duration. It then lets a single probe through
+ * (half open), which closes it on success and opens it again on failure.
+ * <p>
+ * There is one breaker per site, whatever the settings of the field making the call, so that every
+ * field of a site sees the same outage. A call with thresholds different from the breaker's applies
+ * them to it, keeping its state and window, so the settings of the latest call win. Fields sharing a
+ * site are meant to share their thresholds.
+ */
+public class CircuitBreaker {
+    public static final String[] PROPERTY_NAMES = new String[]{
+            "bulkheadLimit", "breakerFailureRate", "breakerSlowCallSeconds", "breakerOpenSeconds"
+    };
+
+    private static final int WINDOW_SIZE = 20;
+    private static final int MIN_CALLS = 10;
+
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public enum Outcome {
+        SUCCESS, FAILURE, IGNORED
+    }
+
+    private final String key;
+    private Settings settings;
+    private final boolean[] failed = new boolean[WINDOW_SIZE];
+    private final boolean[] slow = new boolean[WINDOW_SIZE];
+    private int calls = 0;
+    private int next = 0;
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private boolean probing = false;
+    private int inFlight = 0;
+    private long rejected = 0;
+
+    private CircuitBreaker(String key, Settings settings) {
+        this.key = key;
+        this.settings = settings;
+    }
+
+    /**
+     * @return the breaker of the key, with the given settings applied to it
+     */
+    public static CircuitBreaker forKey(String key, Settings settings) {
+        CircuitBreaker breaker = breakers.computeIfAbsent(key, k -> new CircuitBreaker(k, settings));
+        breaker.apply(settings);
+        return breaker;
+    }
+
+    private synchronized void apply(Settings settings) {
+        if (!this.settings.equals(settings)) {
+            this.settings = settings;
+        }
+    }
+
+    public static JSONObject getStatistics() {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+            CircuitBreaker breaker = entry.getValue();
+            synchronized (breaker) {
+                breaker.updateState(System.currentTimeMillis());
+                JSONObject breakerStats = new JSONObject();
+                breakerStats.put("state", breaker.state.name());
+                breakerStats.put("inFlight", breaker.inFlight);
+                breakerStats.put("bulkheadLimit", breaker.settings.bulkheadLimit);
+                breakerStats.put("failureRate", breaker.getRate(breaker.failed));
+                breakerStats.put("slowCallRate", breaker.getRate(breaker.slow));
+                breakerStats.put("calls", breaker.calls);
+                breakerStats.put("rejected", breaker.rejected);
+                if (breaker.state == State.OPEN) {
+                    breakerStats.put("retryInSeconds", breaker.getRetryInSeconds(System.currentTimeMillis()));
+                }
+                stats.put(entry.getKey(), breakerStats);
+            }
+        }
+        return stats;
+    }
+
+    public static void clear() {
+        breakers.clear();
+    }
+
+    /**
+     * Admits a call, which must be released with its outcome.
+     *
+     * @throws RejectedException if the breaker is open, a probe is already in flight, or the bulkhead is full
+     */
+    public synchronized Permit acquire() throws RejectedException {
+        long now = System.currentTimeMillis();
+        updateState(now);
+        if (state == State.OPEN) {
+            rejected++;
+            throw new RejectedException("SharePoint calls to " + key + " are failing, not calling it for " + getRetryInSeconds(now) + " s", getRetryInSeconds(now));
+        }
+        if (state == State.HALF_OPEN && probing) {
+            rejected++;
+            throw new RejectedException("SharePoint calls to " + key + " are failing, waiting for the probe call", 1);
+        }
+        if (inFlight >= settings.bulkheadLimit) {
+            rejected++;
+            throw new RejectedException("Too many concurrent SharePoint calls to " + key, 1);
+        }
+        inFlight++;
+        boolean probe = state == State.HALF_OPEN;
+        if (probe) {
+            probing = true;
+        }
+        return new Permit(probe);
+    }
+
+    private synchronized void release(Permit permit, Outcome outcome, long elapsedNanos) {
+        inFlight--;
+        if (permit.probe) {
+            probing = false;
+            if (outcome == Outcome.SUCCESS) {
+                LogUtil.info(CircuitBreaker.class.getName(), "SharePoint calls to " + key + " succeed again, closing the circuit");
+                state = State.CLOSED;
+                calls = 0;
+                next = 0;
+            } else if (outcome == Outcome.FAILURE) {
+                open(System.currentTimeMillis());
+            }
+            return;
+        }
+        if (outcome == Outcome.IGNORED || state != State.CLOSED) {
+            // calls admitted before the circuit opened do not count
+            return;
+        }
+
+        failed[next] = outcome == Outcome.FAILURE;
+        slow[next] = outcome == Outcome.SUCCESS && elapsedNanos > settings.slowCallNanos;
+        next = (next + 1) % WINDOW_SIZE;
+        calls = Math.min(WINDOW_SIZE, calls + 1);
+        if (calls >= MIN_CALLS && (getRate(failed) >= settings.failureRate || getRate(slow) >= settings.failureRate)) {
+            LogUtil.warn(CircuitBreaker.class.getName(), "Opening the circuit of " + key + " for " + settings.openMillis / 1000 + " s, failure rate "
+                    + getRate(failed) + "%, slow call rate " + getRate(slow) + "%");
+            open(System.currentTimeMillis());
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+        calls = 0;
+        next = 0;
+    }
+
+    private void updateState(long now) {
+        if (state == State.OPEN && now - openedAt >= settings.openMillis) {
+            state = State.HALF_OPEN;
+        }
+    }
+
+    private int getRate(boolean[] outcomes) {
+        if (calls == 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < calls; i++) {
+            if (outcomes[i]) {
+                count++;
+            }
+        }
+        return count * 100 / calls;
+    }
+
+    private long getRetryInSeconds(long now) {
+        return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(openedAt + settings.openMillis - now));
+    }
+
+    /**
+     * A call admitted by the breaker.
+     */
+    public class Permit {
+        private final boolean probe;
+        private boolean released = false;
+
+        private Permit(boolean probe) {
+            this.probe = probe;
+        }
+
+        /**
+         * @param outcome SUCCESS for any response but a 5xx, FAILURE for a 5xx or an I/O error, IGNORED if the call was not made
+         * @param elapsedNanos time from sending the call to receiving the response headers
+         */
+        public void release(Outcome outcome, long elapsedNanos) {
+            synchronized (CircuitBreaker.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            CircuitBreaker.this.release(this, outcome, elapsedNanos);
+        }
+    }
+
+    /**
+     * Thrown for a call rejected without being sent.
+     */
+    public static class RejectedException extends IOException {
+        private final long retryAfterSeconds;
+
+        RejectedException(String message, long retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * Bulkhead and breaker thresholds, read from the plugin properties.
+     */
+    public static class Settings {
+        private final int bulkheadLimit;
+        private final int failureRate;
+        private final long slowCallNanos;
+        private final long openMillis;
+
+        public Settings(int bulkheadLimit, int failureRate, int slowCallSeconds, int openSeconds) {
+            this.bulkheadLimit = Math.max(1, bulkheadLimit);
+            this.failureRate = Math.max(1, Math.min(100, failureRate));
+            this.slowCallNanos = TimeUnit.SECONDS.toNanos(Math.max(1, slowCallSeconds));
+            this.openMillis = TimeUnit.SECONDS.toMillis(Math.max(1, openSeconds));
+        }
+
+        public static Settings fromProperties(Map properties) {
+            return new Settings(
+                    ClientSettings.getInt(properties, "bulkheadLimit", 32),
+                    ClientSettings.getInt(properties, "breakerFailureRate", 50),
+                    ClientSettings.getInt(properties, "breakerSlowCallSeconds", 20),
+                    ClientSettings.getInt(properties, "breakerOpenSeconds", 30));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            Settings that = (Settings) o;
+            return bulkheadLimit == that.bulkheadLimit
+                    && failureRate == that.failureRate
+                    && slowCallNanos == that.slowCallNanos
+                    && openMillis == that.openMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bulkheadLimit, failureRate, slowCallNanos, openMillis);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Connection pool, dispatcher and timeout settings of a pooled OkHttpClient,
+ * read from the plugin properties.
+ */
+public class ClientSettings {
+    public static final String[] PROPERTY_NAMES = new String[]{
+            "connectTimeout", "readTimeout", "writeTimeout", "maxRequests", "maxRequestsPerHost", "maxIdleConnections", "keepAliveDuration", "maxRetries"
+    };
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int writeTimeout;
+    private final int maxRequests;
+    private final int maxRequestsPerHost;
+    private final int maxIdleConnections;
+    private final int keepAliveDuration;
+    private final int maxRetries;
+
+    public ClientSettings(int connectTimeout, int readTimeout, int writeTimeout, int maxRequests, int maxRequestsPerHost, int maxIdleConnections, int keepAliveDuration, int maxRetries) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.writeTimeout = writeTimeout;
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAliveDuration = keepAliveDuration;
+        this.maxRetries = maxRetries;
+    }
+
+    public static ClientSettings fromProperties(Map properties) {
+        return new ClientSettings(
+                getInt(properties, "connectTimeout", 10, 1),
+                getInt(properties, "readTimeout", 60, 1),
+                getInt(properties, "writeTimeout", 60, 1),
+                getInt(properties, "maxRequests", 64, 1),
+                getInt(properties, "maxRequestsPerHost", 16, 1),
+                getInt(properties, "maxIdleConnections", 5, 1),
+                getInt(properties, "keepAliveDuration", 300, 1),
+                getInt(properties, "maxRetries", 4, 0));
+    }
+
+    /**
+     * Like {@link #getInt(Map, String, int)}, raised to the minimum, e.g. as a dispatcher or pool
+     * rejects a limit of 0 and would fail every call.
+     */
+    public static int getInt(Map properties, String name, int defaultValue, int minimum) {
+        return Math.max(minimum, getInt(properties, name, defaultValue));
+    }
+
+    public static int getInt(Map properties, String name, int defaultValue) {
+        if (properties == null || properties.get(name) == null) {
+            return defaultValue;
+        }
+        String value = properties.get(name).toString().trim();
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Timeouts are in seconds.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public int getKeepAliveDuration() {
+        return keepAliveDuration;
+    }
+
+    /**
+     * Retries of throttled or failed calls, see {@link RetryPolicy}.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ClientSettings)) {
+            return false;
+        }
+        ClientSettings that = (ClientSettings) o;
+        return connectTimeout == that.connectTimeout
+                && readTimeout == that.readTimeout
+                && writeTimeout == that.writeTimeout
+                && maxRequests == that.maxRequests
+                && maxRequestsPerHost == that.maxRequestsPerHost
+                && maxIdleConnections == that.maxIdleConnections
+                && keepAliveDuration == that.keepAliveDuration
+                && maxRetries == that.maxRetries;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(connectTimeout, readTimeout, writeTimeout, maxRequests, maxRequestsPerHost, maxIdleConnections, keepAliveDuration, maxRetries);
+    }
+}
@@ -0,0 +1,229 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.joget.commons.util.LogUtil;
+import org.joget.commons.util.SecurityUtil;
+import org.joget.commons.util.SetupManager;
+import org.json.JSONObject;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side registry of SharePoint connection profiles. Download links carry a
+ * short handle made of the profile id, an expiry and an HMAC over the document,
+ * instead of the encrypted connection settings. Profiles are stored encrypted
+ * under wflow/app_sharepoint_profiles so that handles stay valid across restarts
+ * and on every node sharing the wflow directory.
+ */
+public class ConnectionProfileRegistry {
+    private static final long HANDLE_TTL_SECONDS = TimeUnit.HOURS.toSeconds(24);
+    private static final String KEY_FILE = "hmac.key";
+    private static final String[] CONNECTION_PROPERTY_NAMES = new String[]{"applicationId", "clientId", "tenantName", "tenantId", "siteName", "folderName"};
+
+    private static final Map<String, Map<String, Object>> profiles = new ConcurrentHashMap<>();
+    private static volatile byte[] hmacKey;
+
+    public static File getDirectory() {
+        return new File(SetupManager.getBaseDirectory(), "app_sharepoint_profiles");
+    }
+
+    /**
+     * Registers the connection settings of a plugin, writing them to disk only the first time they are seen.
+     *
+     * @param properties plugin properties, credentials still encrypted
+     * @return the id of the profile, derived from its content
+     */
+    public static String register(Map properties) throws IOException {
+        Map<String, Object> profile = new TreeMap<>();
+        for (String key : CONNECTION_PROPERTY_NAMES) {
+            profile.put(key, getString(properties, key));
+        }
+        for (String key : ClientSettings.PROPERTY_NAMES) {
+            profile.put(key, getString(properties, key));
+        }
+        for (String key : CircuitBreaker.PROPERTY_NAMES) {
+            profile.put(key, getString(properties, key));
+        }
+        for (String key : DownloadCache.PROPERTY_NAMES) {
+            profile.put(key, getString(properties, key));
+        }
+        for (String key : SharepointAPIHelper.ENDPOINT_PROPERTY_NAMES) {
+            profile.put(key, getString(properties, key));
+        }
+        for (String key : SharepointAPIHelper.DOWNLOAD_PROPERTY_NAMES) {
+            profile.put(key, getString(properties, key));
+        }
+        for (String key : EagerUploads.PROPERTY_NAMES) {
+            profile.put(key, getString(properties, key));
+        }
+        profile.put("clientSecret", SecurityUtil.decrypt(getString(properties, "clientSecret")));
+        profile.put("refreshToken", SecurityUtil.decrypt(getString(properties, "refreshToken")));
+
+        String json = new JSONObject(profile).toString();
+        String profileId = toHex(sha256(json.getBytes(StandardCharsets.UTF_8))).substring(0, 32);
+        if (!profiles.containsKey(profileId)) {
+            File file = new File(getDirectory(), profileId + ".dat");
+            if (!file.isFile()) {
+                publish(file, SecurityUtil.encrypt(json).getBytes(StandardCharsets.UTF_8));
+            }
+            profiles.put(profileId, new JSONObject(json).toMap());
+        }
+        return profileId;
+    }
+
+    /**
+     * Converts a resolved profile back to the form of plugin properties, for the utilities keeping
+     * connections the way the element passes them, such as {@link RemoteDeletion}.
+     *
+     * @param profile connection profile, credentials in plain text
+     * @return a copy of the profile with the credentials encrypted
+     */
+    public static Map<String, Object> toProperties(Map<String, Object> profile) {
+        Map<String, Object> properties = new HashMap<>(profile);
+        properties.put("clientSecret", SecurityUtil.encrypt(getString(profile, "clientSecret")));
+        properties.put("refreshToken", SecurityUtil.encrypt(getString(profile, "refreshToken")));
+        return properties;
+    }
+
+    /**
+     * @return a handle allowing the download of the document with the profile until it expires
+     */
+    public static String createHandle(String profileId, String documentId, String fileName) throws IOException {
+        String expiry = Long.toString(System.currentTimeMillis() / 1000 + HANDLE_TTL_SECONDS, 36);
+        return profileId + "." + expiry + "." + sign(profileId, expiry, documentId, fileName);
+    }
+
+    /**
+     * @return the connection settings of the handle, or null if the handle is invalid, expired
+     *         or was issued for another document
+     */
+    public static Map<String, Object> resolve(String handle, String documentId, String fileName) {
+        try {
+            String[] parts = handle != null ? handle.split("\\.") : new String[0];
+            if (parts.length != 3) {
+                return null;
+            }
+            String profileId = parts[0];
+            String expiry = parts[1];
+            if (Long.parseLong(expiry, 36) < System.currentTimeMillis() / 1000) {
+                return null;
+            }
+            byte[] expected = sign(profileId, expiry, documentId, fileName).getBytes(StandardCharsets.US_ASCII);
+            if (!MessageDigest.isEqual(expected, parts[2].getBytes(StandardCharsets.US_ASCII))) {
+                return null;
+            }
+            return getProfile(profileId);
+        } catch (NumberFormatException | IOException e) {
+            LogUtil.debug(ConnectionProfileRegistry.class.getName(), "Invalid download handle: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static void clear() {
+        profiles.clear();
+        hmacKey = null;
+    }
+
+    private static Map<String, Object> getProfile(String profileId) throws IOException {
+        Map<String, Object> profile = profiles.get(profileId);
+        if (profile == null && profileId.matches("[0-9a-f]+")) {
+            File file = new File(getDirectory(), profileId + ".dat");
+            if (!file.isFile()) {
+                return null;
+            }
+            String json = SecurityUtil.decrypt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            profile = new JSONObject(json).toMap();
+            profiles.put(profileId, profile);
+        }
+        return profile;
+    }
+
+    private static String getString(Map properties, String key) {
+        Object value = properties != null ? properties.get(key) : null;
+        return value != null ? value.toString() : "";
+    }
+
+    private static String sign(String profileId, String expiry, String documentId, String fileName) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(getHmacKey(), "HmacSHA256"));
+            byte[] signature = mac.doFinal((profileId + "|" + expiry + "|" + documentId + "|" + fileName).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(signature, 16));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to sign download handle", e);
+        }
+    }
+
+    private static byte[] getHmacKey() throws IOException {
+        byte[] key = hmacKey;
+        if (key == null) {
+            synchronized (ConnectionProfileRegistry.class) {
+                key = hmacKey;
+                if (key == null) {
+                    File file = new File(getDirectory(), KEY_FILE);
+                    if (!file.isFile()) {
+                        byte[] generated = new byte[32];
+                        new SecureRandom().nextBytes(generated);
+                        publish(file, SecurityUtil.encrypt(Base64.getEncoder().encodeToString(generated)).getBytes(StandardCharsets.UTF_8));
+                    }
+                    // read back rather than keeping the generated key, another node may have published first
+                    key = Base64.getDecoder().decode(SecurityUtil.decrypt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)));
+                    hmacKey = key;
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Publishes the file complete, unless it exists already. The content is written to a temporary
+     * file first and then linked under its name, which fails rather than replacing the file another
+     * node published meanwhile, so every node ends up reading the same content.
+     */
+    private static void publish(File file, byte[] content) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            Files.write(temp.toPath(), content);
+            Files.createLink(file.toPath(), temp.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // published by another node, whose content is kept
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,370 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.joget.commons.util.LogUtil;
+import org.joget.commons.util.SetupManager;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * On-disk index from the SHA-256 of uploaded content to the UniqueIds of the SharePoint files
+ * holding it, per tenant, site and folder, so that identical attachments are uploaded once.
+ * <p>
+ * Each scope is a directory under wflow/app_sharepoint_dedup with one {@code <sha256>.json}
+ * entry per content and one {@code <UniqueId>.ref} file pointing back to it, so the index is
+ * shared by the nodes of a cluster through the wflow directory. Updates hold a lock on the
+ * {@code .lock} file of the scope and replace files atomically, so nodes neither lose each
+ * other's updates nor read half-written entries.
+ * <p>
+ * An entry lists, for each file holding the content, the records it is attached to, once per
+ * attachment. The same content may be held by several files, e.g. when two nodes upload it at
+ * once. A record removing a file drops one of its references, and the file is only deleted from
+ * SharePoint once it has none left.
+ */
+public class DedupIndex {
+    private static final String LOCK_FILE = ".lock";
+
+    /**
+     * File locks are held per JVM, so threads of this node take turns on this monitor before locking.
+     */
+    private static final Object LOCK = new Object();
+
+    private final File directory;
+
+    private DedupIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the index of the tenant, site and folder in the properties, or null if deduplication is not enabled
+     */
+    public static DedupIndex getInstance(Map properties) {
+        if (properties == null || !"true".equals(String.valueOf(properties.get("deduplicate")))) {
+            return null;
+        }
+        return forScope(properties);
+    }
+
+    /**
+     * Drops a reference of the record to the file from the index of its scope, whether deduplication
+     * is still enabled or not. The file is removed from the index with its last reference.
+     *
+     * @param recordId the record removing the file, or null for a file attached to no record
+     * @return true if the file is still attached to other records and must be kept in SharePoint
+     */
+    public static boolean release(Map properties, String documentId, String recordId) {
+        DedupIndex index = forScope(properties);
+        if (!index.directory.isDirectory() || !index.getReferenceFile(documentId).isFile()) {
+            return false;
+        }
+        try {
+            return index.locked(() -> index.releaseReference(documentId, recordId));
+        } catch (IOException e) {
+            LogUtil.warn(DedupIndex.class.getName(), "Unable to release a reference to " + documentId + ", keeping it: " + e.getMessage());
+            return true;
+        }
+    }
+
+    private static DedupIndex forScope(Map properties) {
+        String scope = properties.get("tenantName") + "|" + properties.get("siteName") + "|" + properties.get("folderName");
+        return new DedupIndex(new File(new File(SetupManager.getBaseDirectory(), "app_sharepoint_dedup"), sha256(scope.getBytes(StandardCharsets.UTF_8)).substring(0, 32)));
+    }
+
+    /**
+     * @return the hex SHA-256 of the file content, read through a fixed-size buffer
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(FileRequestBody.BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return the UniqueId of a file uploaded with this content and length, or null if there is none
+     */
+    public String get(String hash, long length) {
+        JSONObject entry = readEntry(hash);
+        return entry != null && entry.optLong("length", -1) == length ? entry.optString("documentId", null) : null;
+    }
+
+    /**
+     * Records a file uploaded for a record. A file already holding the content keeps its references,
+     * and the new file is added next to it. If uploading with overwrite=true replaced the content of
+     * the file, its references move from the entry of its previous content to this one.
+     *
+     * @param recordId the record the file is attached to, null if it has no id yet
+     */
+    public void put(String hash, long length, String documentId, String recordId) {
+        try {
+            locked(() -> {
+                File referenceFile = getReferenceFile(documentId);
+                Object moved = null;
+                if (referenceFile.isFile()) {
+                    String previous = readReference(documentId);
+                    if (!previous.equals(hash)) {
+                        moved = removeFile(previous, documentId);
+                    }
+                }
+
+                JSONObject entry = readEntry(hash);
+                if (entry == null) {
+                    entry = new JSONObject();
+                    entry.put("documentId", documentId);
+                    entry.put("length", length);
+                    entry.put("files", new JSONObject());
+                }
+                JSONObject files = getFiles(entry);
+                Object references = files.has(documentId) ? files.get(documentId) : moved;
+                if (references == null) {
+                    references = new JSONArray();
+                }
+                if (references instanceof JSONArray) {
+                    ((JSONArray) references).put(getReference(recordId));
+                }
+                files.put(documentId, references);
+                writeEntry(hash, entry);
+                writeAtomically(referenceFile, hash);
+                return null;
+            });
+        } catch (IOException e) {
+            LogUtil.warn(DedupIndex.class.getName(), "Unable to index " + documentId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records that a file indexed with this content is attached to one more record, or once more to the same record.
+     *
+     * @param documentId the file returned by {@link #get}
+     * @param recordId the record the file is attached to, null if it has no id yet
+     */
+    public void addReference(String hash, String documentId, String recordId) {
+        try {
+            locked(() -> {
+                JSONObject entry = readEntry(hash);
+                JSONObject files = entry != null ? getFiles(entry) : null;
+                if (files == null || !files.has(documentId) || !(files.get(documentId) instanceof JSONArray)) {
+                    // entries written before references were tracked keep their file, as its records are unknown
+                    return null;
+                }
+                files.getJSONArray(documentId).put(getReference(recordId));
+                writeEntry(hash, entry);
+                return null;
+            });
+        } catch (IOException e) {
+            LogUtil.warn(DedupIndex.class.getName(), "Unable to index another reference to " + documentId + ": " + e.getMessage());
+        }
+    }
+
+    private boolean releaseReference(String documentId, String recordId) throws IOException {
+        if (!getReferenceFile(documentId).isFile()) {
+            return false;
+        }
+        String hash = readReference(documentId);
+        JSONObject entry = readEntry(hash);
+        JSONObject files = entry != null ? getFiles(entry) : null;
+        if (files == null || !files.has(documentId)) {
+            // the entry was dropped, nothing else references the file
+            getReferenceFile(documentId).delete();
+            return false;
+        }
+        if (!(files.get(documentId) instanceof JSONArray) || recordId == null) {
+            // a file attached to no record, or indexed before references were tracked, is kept
+            return true;
+        }
+
+        // a file attached before its record had an id is released by the record
+        JSONArray references = files.getJSONArray(documentId);
+        int index = indexOf(references, recordId);
+        if (index == -1) {
+            index = indexOf(references, "");
+        }
+        if (index != -1) {
+            references.remove(index);
+        }
+        if (references.length() > 0) {
+            writeEntry(hash, entry);
+            return true;
+        }
+        removeFile(hash, documentId);
+        return false;
+    }
+
+    /**
+     * Drops a file from the entry of the content, e.g. once it no longer exists in SharePoint. The
+     * entry is dropped with its last file.
+     */
+    public void remove(String hash, String documentId) {
+        try {
+            locked(() -> removeFile(hash, documentId));
+        } catch (IOException e) {
+            LogUtil.warn(DedupIndex.class.getName(), "Unable to drop " + documentId + " from the dedup index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops the entry of the content with all its files.
+     */
+    public void remove(String hash) {
+        try {
+            locked(() -> {
+                JSONObject entry = readEntry(hash);
+                getEntryFile(hash).delete();
+                if (entry != null) {
+                    for (String documentId : getFiles(entry).keySet()) {
+                        getReferenceFile(documentId).delete();
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            LogUtil.warn(DedupIndex.class.getName(), "Unable to drop dedup entry " + hash + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the references the file had in the entry, JSONObject.NULL if unknown, null if it was not in the entry
+     */
+    private Object removeFile(String hash, String documentId) throws IOException {
+        getReferenceFile(documentId).delete();
+        JSONObject entry = readEntry(hash);
+        if (entry == null) {
+            return null;
+        }
+        JSONObject files = getFiles(entry);
+        Object references = files.remove(documentId);
+        if (files.length() == 0) {
+            getEntryFile(hash).delete();
+        } else {
+            if (documentId.equals(entry.optString("documentId"))) {
+                // further duplicates link to a file that is still indexed
+                entry.put("documentId", files.keys().next());
+            }
+            writeEntry(hash, entry);
+        }
+        return references;
+    }
+
+    /**
+     * @return the files of the entry with their references, or JSONObject.NULL for a file indexed
+     *         before references were tracked. Entries of a single file are converted on the fly.
+     */
+    private static JSONObject getFiles(JSONObject entry) {
+        JSONObject files = entry.optJSONObject("files");
+        if (files == null) {
+            files = new JSONObject();
+            if (entry.has("documentId")) {
+                files.put(entry.getString("documentId"), entry.has("references") ? entry.get("references") : JSONObject.NULL);
+            }
+            entry.remove("references");
+            entry.put("files", files);
+        }
+        return files;
+    }
+
+    private static int indexOf(JSONArray references, String reference) {
+        for (int i = 0; i < references.length(); i++) {
+            if (reference.equals(references.optString(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String getReference(String recordId) {
+        return recordId != null ? recordId : "";
+    }
+
+    /**
+     * Runs the update holding the lock of the scope, against this node's other threads and other nodes.
+     */
+    private <T> T locked(Update<T> update) throws IOException {
+        synchronized (LOCK) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create dedup index directory " + directory);
+            }
+            try (FileChannel channel = FileChannel.open(new File(directory, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock lock = channel.lock()) {
+                return update.run();
+            }
+        }
+    }
+
+    private String readReference(String documentId) throws IOException {
+        return new String(Files.readAllBytes(getReferenceFile(documentId).toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+    private void writeEntry(String hash, JSONObject entry) throws IOException {
+        writeAtomically(getEntryFile(hash), entry.toString());
+    }
+
+    private static void writeAtomically(File file, String content) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(temp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private JSONObject readEntry(String hash) {
+        File entryFile = getEntryFile(hash);
+        if (!entryFile.isFile()) {
+            return null;
+        }
+        try {
+            return new JSONObject(new String(Files.readAllBytes(entryFile.toPath()), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            LogUtil.warn(DedupIndex.class.getName(), "Ignoring unreadable dedup entry " + entryFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private File getEntryFile(String hash) {
+        return new File(directory, hash.replaceAll("[^a-f0-9]", "_") + ".json");
+    }
+
+    private File getReferenceFile(String documentId) {
+        return new File(directory, documentId.replaceAll("[^A-Za-z0-9\\-]", "_") + ".ref");
+    }
+
+    private static String sha256(byte[] content) {
+        return toHex(newDigest().digest(content));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private interface Update<T> {
+        T run() throws IOException;
+    }
+}
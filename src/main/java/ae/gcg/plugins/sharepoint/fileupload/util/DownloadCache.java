@@ -0,0 +1,233 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.joget.commons.util.LogUtil;
+import org.joget.commons.util.SetupManager;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-local cache of downloaded SharePoint files keyed by UniqueId. Each entry
+ * keeps the ETag it was downloaded with so it can be revalidated, and the cache
+ * evicts the least recently used entries once it grows beyond its size limit.
+ */
+public class DownloadCache {
+    public static final String[] PROPERTY_NAMES = new String[]{"downloadCache", "downloadCacheDir", "downloadCacheSize"};
+
+    private static final Map<String, DownloadCache> caches = new ConcurrentHashMap<>();
+
+    private final File directory;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile long maxBytes;
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private DownloadCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    /**
+     * @return the cache configured in the properties, or null if caching is not enabled
+     */
+    public static DownloadCache getInstance(Map properties) {
+        if (properties == null || !"true".equals(String.valueOf(properties.get("downloadCache")))) {
+            return null;
+        }
+        Object dir = properties.get("downloadCacheDir");
+        File directory = dir != null && !dir.toString().trim().isEmpty() ? new File(dir.toString().trim()) : new File(SetupManager.getBaseDirectory(), "app_sharepoint_cache");
+        long maxBytes = ClientSettings.getInt(properties, "downloadCacheSize", 1024) * 1024L * 1024L;
+
+        DownloadCache cache = caches.computeIfAbsent(directory.getAbsolutePath(), k -> new DownloadCache(directory, maxBytes));
+        if (cache.maxBytes != maxBytes) {
+            cache.maxBytes = maxBytes;
+            cache.evict();
+        }
+        return cache;
+    }
+
+    public static JSONObject getStatistics() {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, DownloadCache> entry : caches.entrySet()) {
+            DownloadCache cache = entry.getValue();
+            JSONObject cacheStats = new JSONObject();
+            cacheStats.put("hits", cache.hits.get());
+            cacheStats.put("misses", cache.misses.get());
+            cacheStats.put("evictions", cache.evictions.get());
+            synchronized (cache) {
+                cacheStats.put("entries", cache.entries.size());
+                cacheStats.put("bytes", cache.totalBytes);
+            }
+            cacheStats.put("maxBytes", cache.maxBytes);
+            stats.put(entry.getKey(), cacheStats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return the cached entry, marking it as most recently used, or null if the document is not cached
+     */
+    public synchronized Entry get(String documentId) {
+        Entry entry = entries.get(documentId);
+        if (entry != null && !entry.getFile().isFile()) {
+            remove(documentId);
+            return null;
+        }
+        return entry;
+    }
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * @return a temp file in the cache directory to download into before {@link #commit}
+     */
+    public File createTempFile() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create download cache directory " + directory);
+        }
+        return File.createTempFile("download", ".tmp", directory);
+    }
+
+    /**
+     * Moves a completely downloaded temp file into the cache.
+     */
+    public void commit(String documentId, String etag, String lastModified, File tempFile) {
+        if (etag == null || tempFile.length() > maxBytes) {
+            // can't be revalidated or will never fit
+            tempFile.delete();
+            return;
+        }
+        String name = getFileName(documentId);
+        File file = new File(directory, name + ".bin");
+        try {
+            JSONObject metadata = new JSONObject();
+            metadata.put("documentId", documentId);
+            metadata.put("etag", etag);
+            metadata.put("lastModified", lastModified != null ? lastModified : "");
+            Files.write(new File(directory, name + ".json").toPath(), metadata.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized (this) {
+                Entry previous = entries.put(documentId, new Entry(file, etag, lastModified, file.length()));
+                if (previous != null) {
+                    totalBytes -= previous.getLength();
+                }
+                totalBytes += file.length();
+            }
+            evict();
+        } catch (IOException e) {
+            LogUtil.warn(DownloadCache.class.getName(), "Unable to cache " + documentId + ": " + e.getMessage());
+            tempFile.delete();
+        }
+    }
+
+    public synchronized void remove(String documentId) {
+        Entry entry = entries.remove(documentId);
+        if (entry != null) {
+            totalBytes -= entry.getLength();
+            deleteFiles(documentId);
+        }
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue().getLength();
+            deleteFiles(eldest.getKey());
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the metadata files, least recently modified first.
+     */
+    private synchronized void load() {
+        File[] metadataFiles = directory.listFiles((d, n) -> n.endsWith(".json"));
+        if (metadataFiles == null) {
+            return;
+        }
+        List<File> sorted = new ArrayList<>(Arrays.asList(metadataFiles));
+        sorted.sort(Comparator.comparingLong(File::lastModified));
+        for (File metadataFile : sorted) {
+            try {
+                JSONObject metadata = new JSONObject(new String(Files.readAllBytes(metadataFile.toPath()), StandardCharsets.UTF_8));
+                String documentId = metadata.getString("documentId");
+                File file = new File(directory, getFileName(documentId) + ".bin");
+                if (file.isFile()) {
+                    entries.put(documentId, new Entry(file, metadata.getString("etag"), metadata.optString("lastModified", null), file.length()));
+                    totalBytes += file.length();
+                } else {
+                    metadataFile.delete();
+                }
+            } catch (Exception e) {
+                metadataFile.delete();
+            }
+        }
+        evict();
+    }
+
+    private void deleteFiles(String documentId) {
+        String name = getFileName(documentId);
+        new File(directory, name + ".bin").delete();
+        new File(directory, name + ".json").delete();
+    }
+
+    private String getFileName(String documentId) {
+        return documentId.replaceAll("[^A-Za-z0-9\\-]", "_");
+    }
+
+    public static class Entry {
+        private final File file;
+        private final String etag;
+        private final String lastModified;
+        private final long length;
+
+        Entry(File file, String etag, String lastModified, long length) {
+            this.file = file;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
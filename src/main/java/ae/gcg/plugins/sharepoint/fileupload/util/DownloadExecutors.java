@@ -0,0 +1,37 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads relaying the body of asynchronous downloads to the browser. A relay only takes a thread
+ * once SharePoint has answered, so waiting for tokens, digests, throttling and the first byte does not.
+ * When all threads are busy, the relay runs on the thread that received the response.
+ */
+public class DownloadExecutors {
+    private static final int MAX_THREADS = 200;
+
+    private static ThreadPoolExecutor relayExecutor;
+
+    public static synchronized ExecutorService getRelayExecutor() {
+        if (relayExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            relayExecutor = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(r, "sharepoint-download-relay-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return relayExecutor;
+    }
+
+    public static synchronized void shutdown() {
+        if (relayExecutor != null) {
+            relayExecutor.shutdownNow();
+            relayExecutor = null;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.joget.commons.util.LogUtil;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads started as soon as a file is dropped, keyed by its temp file path, or by its relay path
+ * for a file relayed chunk by chunk, so that submitting the form only collects the UniqueId. An
+ * upload that no form submit collects within {@link #TTL_MILLIS}, e.g. from an abandoned form or a
+ * file removed from the dropzone, is deleted from SharePoint by a sweeper.
+ * <p>
+ * The folder of an upload is partitioned before the record id is known, so when the submit puts
+ * the file in another folder, e.g. of the record id hash, it is moved there once claimed.
+ * <p>
+ * Uploads are kept in memory on the node that received the file. A submit handled by another node
+ * uploads the file again, and the unclaimed upload is swept.
+ */
+public class EagerUploads {
+    /**
+     * Upload settings carried by the connection profile, as eager uploads start without the plugin properties
+     */
+    public static final String[] PROPERTY_NAMES = new String[]{
+            "uploadConcurrency", "largeFileThreshold", "chunkSize", "folderPartitioning", "resizeWidth", "resizeHeight", "resizeQuality", "resizeMethod"
+    };
+
+    private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(4);
+    private static final long SWEEP_INTERVAL_MINUTES = 10;
+
+    private static final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private static ScheduledThreadPoolExecutor sweeper;
+
+    /**
+     * Starts uploading the temp file, downscaled if it is a large image, within the upload concurrency of the tenant.
+     *
+     * @param connection connection profile of the field, credentials in plain text
+     */
+    public static void start(String path, File file, String folderName, Map<String, Object> connection) {
+        File uploadFile = ImageResizer.resize(file, connection);
+        String tenantName = getString(connection, "tenantName");
+        SharepointAPIHelper helper = new SharepointAPIHelper(connection);
+        CompletableFuture<String> upload = UploadLimiter.submit(tenantName, ClientSettings.getInt(connection, "uploadConcurrency", 4), () -> helper.uploadAsync(
+                getString(connection, "applicationId"),
+                tenantName,
+                getString(connection, "clientId"),
+                getString(connection, "clientSecret"),
+                getString(connection, "refreshToken"),
+                getString(connection, "tenantId"),
+                getString(connection, "siteName"),
+                folderName,
+                file.getName(),
+                uploadFile));
+        upload.whenComplete((documentId, e) -> {
+            if (!uploadFile.equals(file)) {
+                uploadFile.delete();
+            }
+            if (e != null) {
+                LogUtil.warn(EagerUploads.class.getName(), "Eager upload of " + file.getName() + " failed, it is uploaded on submit: " + e.getMessage());
+            }
+        });
+        add(path, upload, folderName, file.getName(), connection);
+    }
+
+    /**
+     * Keeps an upload started elsewhere, e.g. a file relayed by {@link ChunkRelay}, until a form submit claims it.
+     *
+     * @param connection connection profile of the field, credentials in plain text
+     */
+    public static void add(String path, CompletableFuture<String> upload, String folderName, String fileName, Map<String, Object> connection) {
+        uploads.put(path, new Upload(upload, folderName, fileName, connection));
+        startSweeper();
+    }
+
+    /**
+     * Claims the upload of a temp file, which is then no longer swept, moving it to the folder the
+     * submit puts the file in if it was uploaded elsewhere. A file that cannot be moved is left where
+     * it was uploaded, its UniqueId is valid either way.
+     *
+     * @return the upload started for the temp file, or null if none was started on this node
+     */
+    public static CompletableFuture<String> take(String path, String folderName) {
+        Upload upload = path != null ? uploads.remove(path) : null;
+        if (upload == null) {
+            return null;
+        }
+        if (upload.folderName.equals(folderName)) {
+            return upload.future;
+        }
+        Map<String, Object> connection = upload.connection;
+        return upload.future.thenCompose(documentId -> new SharepointAPIHelper(connection).moveAsync(
+                getString(connection, "applicationId"),
+                getString(connection, "tenantName"),
+                getString(connection, "clientId"),
+                getString(connection, "clientSecret"),
+                getString(connection, "refreshToken"),
+                getString(connection, "tenantId"),
+                getString(connection, "siteName"),
+                documentId,
+                folderName,
+                upload.fileName).handle((moved, e) -> {
+            if (e != null) {
+                LogUtil.warn(EagerUploads.class.getName(), "Unable to move " + upload.fileName + " from " + upload.folderName + " to " + folderName + ", leaving it there: " + e.getMessage());
+            }
+            return documentId;
+        }));
+    }
+
+    public static int size() {
+        return uploads.size();
+    }
+
+    private static synchronized void startSweeper() {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "sharepoint-eager-upload-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(EagerUploads::sweep, SWEEP_INTERVAL_MINUTES, SWEEP_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Deletes the files of unclaimed uploads older than the TTL, once their upload completes.
+     */
+    static void sweep() {
+        long expired = System.currentTimeMillis() - TTL_MILLIS;
+        for (Iterator<Map.Entry<String, Upload>> i = uploads.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Upload> entry = i.next();
+            Upload upload = entry.getValue();
+            if (upload.started < expired && uploads.remove(entry.getKey(), upload)) {
+                upload.future.thenAccept(documentId -> {
+                    LogUtil.info(EagerUploads.class.getName(), "Deleting unclaimed upload " + documentId + " of " + entry.getKey());
+                    RemoteDeletion.delete(ConnectionProfileRegistry.toProperties(upload.connection), Collections.singletonList(documentId));
+                });
+            }
+        }
+    }
+
+    public static synchronized void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+        uploads.clear();
+    }
+
+    private static String getString(Map<String, Object> connection, String key) {
+        Object value = connection.get(key);
+        return value != null ? value.toString() : "";
+    }
+
+    private static class Upload {
+        private final CompletableFuture<String> future;
+        private final String folderName;
+        private final String fileName;
+        private final Map<String, Object> connection;
+        private final long started = System.currentTimeMillis();
+
+        Upload(CompletableFuture<String> future, String folderName, String fileName, Map<String, Object> connection) {
+            this.future = future;
+            this.folderName = folderName;
+            this.fileName = fileName;
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of the file properties read from SharePoint for datalist
+ * rendering, so that paging back and forth does not look the same files up again.
+ * A file that no longer exists is cached as well, with a null value.
+ */
+public class FileInfoCache {
+    private static final long TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+    public static String getKey(String tenantName, String siteName, String documentId) {
+        return tenantName + "|" + siteName + "|" + documentId;
+    }
+
+    /**
+     * @return the cached entry, or null if the file was not looked up recently
+     */
+    public static Entry get(String key) {
+        Entry entry = cache.get(key);
+        if (entry != null && entry.expiry < System.currentTimeMillis()) {
+            cache.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    public static Entry put(String key, JSONObject file) {
+        if (cache.size() >= MAX_ENTRIES) {
+            long now = System.currentTimeMillis();
+            cache.values().removeIf(e -> e.expiry < now);
+            if (cache.size() >= MAX_ENTRIES) {
+                cache.clear();
+            }
+        }
+        Entry entry = new Entry(file, System.currentTimeMillis() + TTL_MILLIS);
+        cache.put(key, entry);
+        return entry;
+    }
+
+    public static void clear() {
+        cache.clear();
+    }
+
+    public static class Entry {
+        private final JSONObject file;
+        private final long expiry;
+
+        Entry(JSONObject file, long expiry) {
+            this.file = file;
+            this.expiry = expiry;
+        }
+
+        /**
+         * @return the Name, Length and TimeLastModified of the file, or null if it does not exist
+         */
+        public JSONObject getFile() {
+            return file;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Request body that streams a file from its channel through a fixed-size
+ * buffer, so the memory used per upload does not depend on the file size.
+ */
+public class FileRequestBody extends RequestBody {
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final MediaType contentType;
+    private final long offset;
+    private final long contentLength;
+
+    public FileRequestBody(File file, MediaType contentType) {
+        this(file, contentType, 0, file.length());
+    }
+
+    /**
+     * Streams only the given range of the file, e.g. one chunk of an upload session.
+     */
+    public FileRequestBody(File file, MediaType contentType, long offset, long length) {
+        this.file = file;
+        this.contentType = contentType;
+        this.offset = offset;
+        this.contentLength = length;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.position(offset);
+            long remaining = contentLength;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int read = channel.read(buffer);
+                if (read == -1) {
+                    throw new EOFException("File " + file.getName() + " is shorter than its Content-Length of " + contentLength);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    sink.write(buffer);
+                }
+                remaining -= read;
+            }
+        }
+    }
+}
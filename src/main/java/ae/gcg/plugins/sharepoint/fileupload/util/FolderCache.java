@@ -0,0 +1,64 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the folders this node has created, or found existing, per tenant and site, so that
+ * each folder of a partitioned layout is created at most once per node. Concurrent uploads to a
+ * new folder share a single creation.
+ */
+public class FolderCache {
+    private static final int MAX_FOLDERS = 10000;
+
+    private static final Map<String, CompletableFuture<Void>> folders = new ConcurrentHashMap<>();
+
+    public static String getKey(String tenantName, String siteName, String folderPath) {
+        return tenantName + "|" + siteName + "|" + folderPath;
+    }
+
+    /**
+     * Runs the creator unless the folder is already known or being created. A failed creation is
+     * forgotten, so that the next upload tries again.
+     *
+     * @return a future completed once the folder exists
+     */
+    public static CompletableFuture<Void> ensure(String key, Supplier<CompletableFuture<Void>> creator) {
+        CompletableFuture<Void> known = folders.get(key);
+        if (known != null) {
+            return known;
+        }
+        if (folders.size() >= MAX_FOLDERS) {
+            // creating an existing folder is harmless, so forgetting them all only costs one call per folder
+            folders.clear();
+        }
+
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        known = folders.putIfAbsent(key, created);
+        if (known != null) {
+            return known;
+        }
+        CompletableFuture<Void> creation;
+        try {
+            creation = creator.get();
+        } catch (Throwable e) {
+            creation = new CompletableFuture<>();
+            creation.completeExceptionally(e);
+        }
+        creation.whenComplete((result, e) -> {
+            if (e != null) {
+                folders.remove(key, created);
+                created.completeExceptionally(e);
+            } else {
+                created.complete(null);
+            }
+        });
+        return created;
+    }
+
+    public static void clear() {
+        folders.clear();
+    }
+}
@@ -0,0 +1,59 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the request digest returned by /_api/contextinfo per tenant, site and
+ * token identity for the FormDigestTimeoutSeconds reported by SharePoint.
+ */
+public class FormDigestCache {
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final Map<String, FormDigest> digests = new ConcurrentHashMap<>();
+
+    public static String getKey(String tenantName, String siteName, String identity) {
+        return tenantName + "|" + siteName + "|" + identity;
+    }
+
+    /**
+     * @return the cached digest, or null if there is none or it is about to expire
+     */
+    public static String get(String key) {
+        FormDigest digest = digests.get(key);
+        if (digest == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= digest.expiresAt) {
+            digests.remove(key, digest);
+            return null;
+        }
+        return digest.value;
+    }
+
+    public static void put(String key, String value, long timeoutSeconds) {
+        long lifetime = TimeUnit.SECONDS.toMillis(timeoutSeconds) - EXPIRY_MARGIN_MILLIS;
+        if (lifetime > 0) {
+            digests.put(key, new FormDigest(value, System.currentTimeMillis() + lifetime));
+        }
+    }
+
+    public static void invalidate(String key) {
+        digests.remove(key);
+    }
+
+    public static void clear() {
+        digests.clear();
+    }
+
+    private static class FormDigest {
+        private final String value;
+        private final long expiresAt;
+
+        FormDigest(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
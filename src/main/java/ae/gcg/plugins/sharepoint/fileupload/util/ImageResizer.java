@@ -0,0 +1,275 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.joget.commons.util.LogUtil;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Server-side counterpart of the dropzone resize options (resizeWidth, resizeHeight, resizeQuality
+ * and resizeMethod), for JPEG and PNG files that reach the server at full size, e.g. from API or
+ * mobile clients.
+ * <p>
+ * Images are decoded with source subsampling, so only a little more than the target size is ever
+ * held in memory, and the number of images resized at once is capped. Like dropzone, images are
+ * never enlarged and the EXIF orientation of JPEG photos is applied.
+ */
+public class ImageResizer {
+    private static final long MAX_TARGET_PIXELS = 25_000_000L;
+    private static final Semaphore permits = new Semaphore(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * @return a downscaled copy of the image next to it, or the file itself if it is not a JPEG or PNG image,
+     *         already fits, no size is configured, or resizing does not make it smaller
+     */
+    public static File resize(File file, Map properties) {
+        int width = ClientSettings.getInt(properties, "resizeWidth", 0);
+        int height = ClientSettings.getInt(properties, "resizeHeight", 0);
+        if ((width <= 0 && height <= 0) || (long) Math.max(width, 1) * Math.max(height, 1) > MAX_TARGET_PIXELS) {
+            return file;
+        }
+        boolean crop = "crop".equals(properties.get("resizeMethod")) && width > 0 && height > 0;
+        float quality = 0.8f;
+        try {
+            Object value = properties.get("resizeQuality");
+            if (value != null && !value.toString().trim().isEmpty()) {
+                quality = Math.max(0.1f, Math.min(1f, Float.parseFloat(value.toString().trim())));
+            }
+        } catch (NumberFormatException e) {
+            // keep the default
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return file;
+        }
+        try {
+            File resized = resize(file, width, height, crop, quality);
+            return resized != null ? resized : file;
+        } catch (Exception e) {
+            LogUtil.warn(ImageResizer.class.getName(), "Unable to resize " + file.getName() + ", uploading it as is: " + e.getMessage());
+            return file;
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static File resize(File file, int width, int height, boolean crop, float quality) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                String format = reader.getFormatName().toLowerCase();
+                boolean jpeg = "jpeg".equals(format) || "jpg".equals(format);
+                if (!jpeg && !"png".equals(format)) {
+                    return null;
+                }
+                reader.setInput(input, true, true);
+
+                // the target size applies to the image as displayed, i.e. after the EXIF orientation
+                int orientation = jpeg ? readJpegOrientation(file) : 1;
+                boolean swapped = orientation >= 5;
+                int storedWidth = reader.getWidth(0);
+                int storedHeight = reader.getHeight(0);
+                int displayedWidth = swapped ? storedHeight : storedWidth;
+                int displayedHeight = swapped ? storedWidth : storedHeight;
+
+                double scale;
+                int outputWidth;
+                int outputHeight;
+                double regionWidth = displayedWidth;
+                double regionHeight = displayedHeight;
+                if (crop) {
+                    scale = Math.max((double) width / displayedWidth, (double) height / displayedHeight);
+                    outputWidth = width;
+                    outputHeight = height;
+                    regionWidth = width / scale;
+                    regionHeight = height / scale;
+                } else {
+                    scale = Math.min(width > 0 ? (double) width / displayedWidth : Double.MAX_VALUE, height > 0 ? (double) height / displayedHeight : Double.MAX_VALUE);
+                    outputWidth = Math.max(1, (int) Math.round(displayedWidth * scale));
+                    outputHeight = Math.max(1, (int) Math.round(displayedHeight * scale));
+                }
+                if (scale >= 1) {
+                    return null;
+                }
+
+                // decode the centered region at no less than the output size, subsampling rows and columns
+                int storedRegionWidth = (int) Math.min(storedWidth, Math.round(swapped ? regionHeight : regionWidth));
+                int storedRegionHeight = (int) Math.min(storedHeight, Math.round(swapped ? regionWidth : regionHeight));
+                int storedOutputWidth = swapped ? outputHeight : outputWidth;
+                int storedOutputHeight = swapped ? outputWidth : outputHeight;
+                int subsampling = Math.max(1, Math.min(storedRegionWidth / storedOutputWidth, storedRegionHeight / storedOutputHeight));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle((storedWidth - storedRegionWidth) / 2, (storedHeight - storedRegionHeight) / 2, storedRegionWidth, storedRegionHeight));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage decoded = reader.read(0, param);
+
+                BufferedImage scaled = new BufferedImage(storedOutputWidth, storedOutputHeight, jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+                Graphics2D graphics = scaled.createGraphics();
+                try {
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                    graphics.drawImage(decoded, 0, 0, storedOutputWidth, storedOutputHeight, jpeg ? Color.WHITE : null, null);
+                } finally {
+                    graphics.dispose();
+                }
+                decoded.flush();
+
+                BufferedImage output = orient(scaled, orientation);
+                String name = file.getName();
+                String extension = name.lastIndexOf('.') != -1 ? name.substring(name.lastIndexOf('.')) : (jpeg ? ".jpg" : ".png");
+                File resized = File.createTempFile("resized", extension, file.getParentFile());
+                write(output, jpeg ? "jpeg" : "png", quality, resized);
+
+                if (resized.length() >= file.length()) {
+                    resized.delete();
+                    return null;
+                }
+                LogUtil.info(ImageResizer.class.getName(), "Resized " + name + " from " + displayedWidth + "x" + displayedHeight + " (" + file.length() + " bytes) to "
+                        + output.getWidth() + "x" + output.getHeight() + " (" + resized.length() + " bytes)");
+                return resized;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static void write(BufferedImage image, String format, float quality, File file) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpeg".equals(format)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * @return the image as displayed for the EXIF orientation (1 to 8)
+     */
+    private static BufferedImage orient(BufferedImage image, int orientation) {
+        if (orientation <= 1 || orientation > 8) {
+            return image;
+        }
+        int width = orientation >= 5 ? image.getHeight() : image.getWidth();
+        int height = orientation >= 5 ? image.getWidth() : image.getHeight();
+        BufferedImage oriented = new BufferedImage(width, height, image.getType());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sourceX;
+                int sourceY;
+                switch (orientation) {
+                    case 2: sourceX = width - 1 - x; sourceY = y; break;
+                    case 3: sourceX = width - 1 - x; sourceY = height - 1 - y; break;
+                    case 4: sourceX = x; sourceY = height - 1 - y; break;
+                    case 5: sourceX = y; sourceY = x; break;
+                    case 6: sourceX = y; sourceY = width - 1 - x; break;
+                    case 7: sourceX = height - 1 - y; sourceY = width - 1 - x; break;
+                    default: sourceX = height - 1 - y; sourceY = x; break;
+                }
+                oriented.setRGB(x, y, image.getRGB(sourceX, sourceY));
+            }
+        }
+        return oriented;
+    }
+
+    /**
+     * Reads the orientation tag of the EXIF segment, scanning the JPEG markers up to the image data.
+     *
+     * @return the orientation from 1 to 8, 1 if there is none
+     */
+    static int readJpegOrientation(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedShort() != 0xFFD8) {
+                return 1;
+            }
+            while (true) {
+                int marker = in.readUnsignedShort();
+                if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9) {
+                    return 1;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return 1;
+                }
+                if (marker == 0xFFE1 && length > 14) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    if (segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f' && segment[4] == 0 && segment[5] == 0) {
+                        return readOrientation(segment, 6);
+                    }
+                } else if (in.skipBytes(length) != length) {
+                    return 1;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return 1;
+        }
+    }
+
+    private static int readOrientation(byte[] exif, int tiffStart) {
+        boolean littleEndian = exif[tiffStart] == 'I';
+        int ifd = tiffStart + readInt(exif, tiffStart + 4, littleEndian);
+        int entries = readShort(exif, ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > exif.length) {
+                break;
+            }
+            if (readShort(exif, entry, littleEndian) == 0x0112) {
+                int orientation = readShort(exif, entry + 8, littleEndian);
+                return orientation >= 1 && orientation <= 8 ? orientation : 1;
+            }
+        }
+        return 1;
+    }
+
+    private static int readShort(byte[] bytes, int offset, boolean littleEndian) {
+        int first = bytes[offset] & 0xFF;
+        int second = bytes[offset + 1] & 0xFF;
+        return littleEndian ? (second << 8) | first : (first << 8) | second;
+    }
+
+    private static int readInt(byte[] bytes, int offset, boolean littleEndian) {
+        int high = readShort(bytes, littleEndian ? offset + 2 : offset, littleEndian);
+        int low = readShort(bytes, littleEndian ? offset : offset + 2, littleEndian);
+        return (high << 16) | low;
+    }
+}
@@ -0,0 +1,177 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.joget.apps.app.service.AppUtil;
+import org.joget.apps.form.dao.FormDataDao;
+import org.joget.apps.form.model.FormRow;
+import org.joget.commons.util.LogUtil;
+import org.joget.commons.util.SecurityUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes (or recycles) removed files from SharePoint in one asynchronous $batch
+ * call. Files that could not be deleted are retried in the background, so a
+ * delete never blocks saving the form. Files removed from a record are only
+ * deleted once the record is stored without them.
+ */
+public class RemoteDeletion {
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_SECONDS = 30;
+    private static final long STORE_CHECK_DELAY_SECONDS = 10;
+
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Deletes files attached to no record, e.g. unclaimed uploads.
+     *
+     * @param connection plugin properties of the element, credentials still encrypted
+     * @param documentIds UniqueIds of the files
+     */
+    public static void delete(Map<String, Object> connection, Collection<String> documentIds) {
+        delete(connection, null, documentIds);
+    }
+
+    /**
+     * @param connection plugin properties of the element, credentials still encrypted
+     * @param recordId the record the files were removed from
+     * @param documentIds UniqueIds of the removed files. Pending outbox placeholders are skipped, and
+     *                    so are files still attached to other records through the {@link DedupIndex}.
+     */
+    public static void delete(Map<String, Object> connection, String recordId, Collection<String> documentIds) {
+        List<String> ids = new ArrayList<>();
+        for (String documentId : documentIds) {
+            if (documentId != null && !documentId.isEmpty() && !UploadOutbox.isPending(documentId)) {
+                if (DedupIndex.release(connection, documentId, recordId)) {
+                    LogUtil.info(RemoteDeletion.class.getName(), "Keeping " + documentId + " in SharePoint, its content is attached to other records");
+                } else {
+                    ids.add(documentId);
+                }
+            }
+        }
+        if (!ids.isEmpty()) {
+            attempt(new HashMap<>(connection), ids, 1);
+        }
+    }
+
+    /**
+     * Deletes files removed from a record once the row is stored without them. Formatting runs before
+     * the store binder saves the row, and the submit may still fail, keeping the files in the row.
+     * Files the row still holds after the last check are kept.
+     *
+     * @param connection plugin properties of the element, credentials still encrypted
+     * @param fieldId the column of the row holding the files
+     * @param documentIds UniqueIds of the removed files
+     */
+    public static void deleteOnceStored(Map<String, Object> connection, String formDefId, String tableName, String fieldId, String recordId, Collection<String> documentIds) {
+        Map<String, Object> copy = new HashMap<>(connection);
+        List<String> ids = new ArrayList<>(documentIds);
+        getScheduler().schedule(() -> checkStored(copy, formDefId, tableName, fieldId, recordId, ids, 1), STORE_CHECK_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void checkStored(Map<String, Object> connection, String formDefId, String tableName, String fieldId, String recordId, List<String> documentIds, int attempt) {
+        List<String> stillAttached = new ArrayList<>();
+        try {
+            FormDataDao formDataDao = (FormDataDao) AppUtil.getApplicationContext().getBean("formDataDao");
+            FormRow row = formDataDao.load(formDefId, tableName, recordId);
+            String value = row != null && row.getProperty(fieldId) != null ? row.getProperty(fieldId) : "";
+            for (String documentId : documentIds) {
+                if (row == null || value.contains(documentId)) {
+                    stillAttached.add(documentId);
+                }
+            }
+        } catch (Exception e) {
+            LogUtil.error(RemoteDeletion.class.getName(), e, "Unable to check the files of record " + recordId);
+            stillAttached.addAll(documentIds);
+        }
+
+        List<String> removed = new ArrayList<>(documentIds);
+        removed.removeAll(stillAttached);
+        if (!removed.isEmpty()) {
+            delete(connection, recordId, removed);
+        }
+        if (stillAttached.isEmpty()) {
+            return;
+        }
+        if (attempt >= MAX_ATTEMPTS) {
+            LogUtil.info(RemoteDeletion.class.getName(), "Keeping " + stillAttached + " in SharePoint, record " + recordId + " still holds them");
+            return;
+        }
+        getScheduler().schedule(() -> checkStored(connection, formDefId, tableName, fieldId, recordId, stillAttached, attempt + 1),
+                STORE_CHECK_DELAY_SECONDS << attempt, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private static void attempt(Map<String, Object> connection, List<String> documentIds, int attempt) {
+        CompletableFuture<Map<String, Integer>> deletion;
+        try {
+            deletion = new SharepointAPIHelper(connection).deleteAsync(
+                    (String) connection.get("applicationId"),
+                    (String) connection.get("tenantName"),
+                    (String) connection.get("clientId"),
+                    SecurityUtil.decrypt((String) connection.get("clientSecret")),
+                    SecurityUtil.decrypt((String) connection.get("refreshToken")),
+                    (String) connection.get("tenantId"),
+                    (String) connection.get("siteName"),
+                    documentIds,
+                    !"delete".equals(connection.get("removeFileMode")));
+        } catch (Exception e) {
+            deletion = new CompletableFuture<>();
+            deletion.completeExceptionally(e);
+        }
+        deletion.whenComplete((statuses, e) -> completed(connection, documentIds, attempt, statuses, e));
+    }
+
+    private static void completed(Map<String, Object> connection, List<String> documentIds, int attempt, Map<String, Integer> statuses, Throwable error) {
+        List<String> failed = new ArrayList<>();
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            LogUtil.warn(RemoteDeletion.class.getName(), "Unable to delete " + documentIds.size() + " file(s) from SharePoint: " + cause.getMessage());
+            failed.addAll(documentIds);
+        } else {
+            for (Map.Entry<String, Integer> status : statuses.entrySet()) {
+                int code = status.getValue();
+                // a file that is already gone counts as deleted
+                if ((code < 200 || code >= 300) && code != 404) {
+                    failed.add(status.getKey());
+                }
+            }
+        }
+
+        if (failed.isEmpty()) {
+            return;
+        }
+        if (attempt >= MAX_ATTEMPTS) {
+            LogUtil.warn(RemoteDeletion.class.getName(), "Giving up deleting " + failed + " from SharePoint after " + attempt + " attempts");
+            return;
+        }
+        long delay = RETRY_DELAY_SECONDS << (attempt - 1);
+        LogUtil.warn(RemoteDeletion.class.getName(), "Deleting " + failed + " from SharePoint failed, retrying in " + delay + " s");
+        getScheduler().schedule(() -> attempt(connection, failed, attempt + 1), delay, TimeUnit.SECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "sharepoint-remote-deletion");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+}
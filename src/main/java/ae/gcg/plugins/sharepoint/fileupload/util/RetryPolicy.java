@@ -0,0 +1,119 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponential backoff with full jitter for throttled or failed SharePoint calls.
+ * A Retry-After header sent with a 429 or 503 takes precedence over the backoff.
+ * <p>
+ * Only idempotent requests are sent again after an I/O error or a 5xx, as SharePoint may have
+ * applied them before failing. Other requests, e.g. the upload session operations and $batch
+ * deletes, are only sent again when throttled, which SharePoint does before processing them.
+ */
+public class RetryPolicy {
+    /**
+     * Longest delay a request thread waits for before retrying. A call told to retry later than that
+     * fails with the throttled response instead, so that a throttled tenant does not hold server threads.
+     */
+    public static final long MAX_BLOCKING_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final long BASE_DELAY_MILLIS = 500;
+    private static final long MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_RETRY_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private enum Idempotent {
+        YES
+    }
+
+    private final int maxRetries;
+
+    public RetryPolicy(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public static boolean isThrottled(int code) {
+        return code == 429 || code == 503;
+    }
+
+    public static boolean isRetryable(int code) {
+        return isThrottled(code) || code == 500 || code == 502 || code == 504;
+    }
+
+    /**
+     * @param idempotent whether the request can be sent again after a failure, see {@link #isIdempotent}
+     */
+    public static boolean isRetryable(int code, boolean idempotent) {
+        return idempotent ? isRetryable(code) : isThrottled(code);
+    }
+
+    /**
+     * @return whether the request has an idempotent method or was marked as such with {@link #idempotent}
+     */
+    public static boolean isIdempotent(Request request) {
+        switch (request.method()) {
+            case "GET":
+            case "HEAD":
+            case "PUT":
+            case "DELETE":
+            case "OPTIONS":
+                return true;
+            default:
+                return request.tag(Idempotent.class) != null;
+        }
+    }
+
+    /**
+     * Marks a POST that can safely be sent again, e.g. a token or request digest lookup, or a
+     * Files/add that overwrites the file.
+     */
+    public static Request.Builder idempotent(Request.Builder builder) {
+        return builder.tag(Idempotent.class, Idempotent.YES);
+    }
+
+    /**
+     * @param attempt  the number of the retry about to be made, starting at 1
+     * @param response the failed response, or null if the call failed with an IOException
+     */
+    public long getDelay(int attempt, Response response) {
+        if (response != null) {
+            long retryAfter = parseRetryAfter(response.header("Retry-After"));
+            if (retryAfter >= 0) {
+                return Math.min(retryAfter, MAX_RETRY_AFTER_MILLIS);
+            }
+        }
+        long ceiling = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Retry-After is either a number of seconds or an HTTP date.
+     *
+     * @return the delay in milliseconds, or -1 if absent or invalid
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                long date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0, date - System.currentTimeMillis());
+            } catch (DateTimeParseException ex) {
+                return -1;
+            }
+        }
+    }
+}
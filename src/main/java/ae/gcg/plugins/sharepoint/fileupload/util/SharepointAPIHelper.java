@@ -1,65 +1,623 @@
 package ae.gcg.plugins.sharepoint.fileupload.util;
 
-import com.google.gson.JsonObject;
-import jdk.jpackage.internal.Log;
 import okhttp3.*;
 import org.joget.commons.util.LogUtil;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class SharepointAPIHelper {
+    /**
+     * Properties overriding the SharePoint and access control base URLs, e.g. to point the plugin to a stand-in server
+     */
+    public static final String[] ENDPOINT_PROPERTY_NAMES = new String[]{"sharepointBaseUrl", "accessControlBaseUrl"};
+
+    /**
+     * Properties of the download links, carried with the connection settings
+     */
+    public static final String[] DOWNLOAD_PROPERTY_NAMES = new String[]{"downloadMode"};
+
+    private static final String ACCESS_CONTROL_BASE_URL = "https://accounts.accesscontrol.windows.net";
+
+    private static final int BATCH_SIZE = 100;
+    private static final Pattern BATCH_STATUS = Pattern.compile("(?m)^HTTP/1\\.1 (\\d{3})");
+
+    private static ScheduledExecutorService scheduler;
+
     private final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+    private final ClientSettings clientSettings;
+    private final CircuitBreaker.Settings breakerSettings;
+    private final RetryPolicy retryPolicy;
+    private final long largeFileThreshold;
+    private final long chunkSize;
+    private final boolean createFolders;
+    private final String sharepointBaseUrl;
+    private final String accessControlBaseUrl;
+
+    public SharepointAPIHelper() {
+        this(null);
+    }
+
+    /**
+     * @param properties plugin properties holding the connection pool and timeout settings, see {@link ClientSettings},
+     *                   the bulkhead and circuit breaker thresholds, see {@link CircuitBreaker}, the large file
+     *                   threshold and chunk size in MB, the folder partitioning (folders of a partitioned layout are
+     *                   created on upload), and optionally the base URLs of SharePoint (sharepointBaseUrl) and of the
+     *                   access control service (accessControlBaseUrl), e.g. to point the plugin to a stand-in server
+     */
+    public SharepointAPIHelper(Map properties) {
+        this.clientSettings = ClientSettings.fromProperties(properties);
+        this.breakerSettings = CircuitBreaker.Settings.fromProperties(properties);
+        this.retryPolicy = new RetryPolicy(clientSettings.getMaxRetries());
+        this.largeFileThreshold = ClientSettings.getInt(properties, "largeFileThreshold", 100) * 1024L * 1024L;
+        this.chunkSize = Math.max(1, ClientSettings.getInt(properties, "chunkSize", 10)) * 1024L * 1024L;
+        this.createFolders = properties != null && properties.get("folderPartitioning") != null && !properties.get("folderPartitioning").toString().isEmpty();
+        this.sharepointBaseUrl = getBaseUrl(properties, "sharepointBaseUrl", null);
+        this.accessControlBaseUrl = getBaseUrl(properties, "accessControlBaseUrl", ACCESS_CONTROL_BASE_URL);
+    }
+
+    private static String getBaseUrl(Map properties, String key, String defaultValue) {
+        Object value = properties != null ? properties.get(key) : null;
+        if (value == null || value.toString().trim().isEmpty()) {
+            return defaultValue;
+        }
+        String url = value.toString().trim();
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
 
     public String uploadFileToSharePoint(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String folderName, String fileName, File file) throws IOException {
-        OkHttpClient client = new OkHttpClient();
+        String accessToken = getAccessToken(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken);
 
-        // Prepare the request body with the binary file content
-        byte[] fileContent = Files.readAllBytes(file.toPath());
-        RequestBody body = RequestBody.create(fileContent, MediaType.parse("application/octet-stream"));
+        String tokenKey = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        String digestKey = FormDigestCache.getKey(tenantName, siteName, tokenKey);
+        String fileAddUrl = buildSharePointFileAddUrl(tenantName, siteName, folderName, fileName, true);
 
+        if (createFolders) {
+            await(ensureFolderAsync(tenantName, siteName, folderName, accessToken, tokenKey, digestKey));
+        }
+
+        try (SharepointMetrics.Timer timer = SharepointMetrics.start(SharepointMetrics.PHASE_UPLOAD, tenantName, siteName)) {
+            String uniqueId;
+            if (file.length() > largeFileThreshold && file.length() > chunkSize) {
+                uniqueId = uploadLargeFile(tenantName, siteName, fileAddUrl, file, accessToken, tokenKey, digestKey);
+            } else {
+                // Stream the binary file content instead of loading it into memory
+                RequestBody body = new FileRequestBody(file, OCTET_STREAM);
+
+                // Parse the JSON response to extract the UniqueId
+                JSONObject jsonObject = postWithDigest(tenantName, siteName, fileAddUrl, body, true, accessToken, tokenKey, digestKey);
+                uniqueId = jsonObject.getString("UniqueId");
+            }
+            timer.success();
+            SharepointMetrics.addBytes("upload", tenantName, siteName, file.length());
+            return uniqueId;
+        }
+    }
+
+    /**
+     * Uploads the file in chunks through an upload session (StartUpload, ContinueUpload, FinishUpload).
+     * The session operations are not idempotent, so {@link #execute} does not send them again, and a
+     * chunk whose outcome is unknown (an I/O error or a 5xx) is retried here instead. SharePoint may
+     * have committed it before failing, in which case it rejects the chunk sent again at the same
+     * offset with a 4xx, and the upload resumes after it.
+     */
+    private String uploadLargeFile(String tenantName, String siteName, String fileAddUrl, File file, String accessToken, String tokenKey, String digestKey) throws IOException {
+        // the session is opened on an empty file created up front
+        JSONObject emptyFile = postWithDigest(tenantName, siteName, fileAddUrl, RequestBody.create(new byte[0], OCTET_STREAM), true, accessToken, tokenKey, digestKey);
+        String uniqueId = emptyFile.getString("UniqueId");
+        String uploadId = UUID.randomUUID().toString();
+
+        long length = file.length();
+        long offset = 0;
+        int failures = 0;
+        LogUtil.info(getClass().getName(), "Uploading " + file.getName() + " (" + length + " bytes) in chunks of " + chunkSize + " bytes");
+
+        try {
+            while (true) {
+                long chunkLength = Math.min(chunkSize, length - offset);
+                boolean last = offset + chunkLength >= length;
+                String operation = offset == 0 ? "StartUpload" : (last ? "FinishUpload" : "ContinueUpload");
+                String url = buildUploadSessionUrl(tenantName, siteName, uniqueId, operation, uploadId, offset);
+
+                long next;
+                try {
+                    JSONObject result = postWithDigest(tenantName, siteName, url, new FileRequestBody(file, OCTET_STREAM, offset, chunkLength), false, accessToken, tokenKey, digestKey);
+                    if (last) {
+                        return result.optString("UniqueId", uniqueId);
+                    }
+                    next = Long.parseLong(result.get("value").toString());
+                } catch (IOException e) {
+                    if (failures > 0 && isRefused(e)) {
+                        // the chunk was committed before the failure, unless a refused FinishUpload comes from a session that is gone
+                        if (!last) {
+                            next = offset + chunkLength;
+                        } else if (getFileLength(tenantName, siteName, uniqueId, accessToken, tokenKey) == length) {
+                            return uniqueId;
+                        } else {
+                            throw e;
+                        }
+                    } else if (isIndeterminate(e) && ++failures <= retryPolicy.getMaxRetries()) {
+                        long delay = Math.min(retryPolicy.getDelay(failures, null), RetryPolicy.MAX_BLOCKING_DELAY_MILLIS);
+                        LogUtil.warn(getClass().getName(), operation + " at offset " + offset + " failed, retrying in " + delay + " ms (" + failures + "/" + retryPolicy.getMaxRetries() + "): " + e.getMessage());
+                        sleep(delay);
+                        continue;
+                    } else {
+                        throw e;
+                    }
+                }
+
+                if (next <= offset) {
+                    throw new IOException("Upload session did not advance past offset " + offset);
+                }
+                offset = next;
+                failures = 0;
+            }
+        } catch (IOException e) {
+            cancelUploadSession(tenantName, siteName, uniqueId, uploadId, accessToken, tokenKey, digestKey);
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether the call may have been applied by SharePoint although it failed: an I/O error other
+     *         than a call rejected before being sent, or a 5xx response
+     */
+    static boolean isIndeterminate(Throwable e) {
+        if (e instanceof UnexpectedResponseException) {
+            return ((UnexpectedResponseException) e).getCode() >= 500;
+        }
+        return e instanceof IOException && !(e instanceof CircuitBreaker.RejectedException);
+    }
+
+    /**
+     * @return whether SharePoint refused the request as such (4xx), rather than the credentials or the rate
+     */
+    static boolean isRefused(Throwable e) {
+        if (!(e instanceof UnexpectedResponseException)) {
+            return false;
+        }
+        int code = ((UnexpectedResponseException) e).getCode();
+        return code >= 400 && code < 500 && code != 401 && code != 403 && code != 408 && code != 429;
+    }
+
+    /**
+     * @return the length of a file on SharePoint, e.g. to tell whether an upload session was finished
+     */
+    public long getFileLength(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String uniqueId) throws IOException {
+        String accessToken = getAccessToken(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken);
+        return getFileLength(tenantName, siteName, uniqueId, accessToken, getAccessTokenKey(applicationId, tenantName, tenantId, clientId));
+    }
+
+    /**
+     * @return the length of a file, which is only set once its upload session is finished
+     */
+    private long getFileLength(String tenantName, String siteName, String uniqueId, String accessToken, String tokenKey) throws IOException {
+        try (Response response = executeSharePoint(tenantName, buildFileLengthRequest(tenantName, siteName, uniqueId, accessToken))) {
+            return parseFileLength(response, tokenKey);
+        }
+    }
+
+    private CompletableFuture<Long> getFileLengthAsync(String tenantName, String siteName, String uniqueId, String accessToken, String tokenKey, SharepointMetrics.Timer timer) {
+        return executeAsync(tenantName, buildFileLengthRequest(tenantName, siteName, uniqueId, accessToken), timer).thenCompose(response -> {
+            try (Response closed = response) {
+                return CompletableFuture.completedFuture(parseFileLength(closed, tokenKey));
+            } catch (IOException e) {
+                return failed(e);
+            }
+        });
+    }
+
+    private Request buildFileLengthRequest(String tenantName, String siteName, String uniqueId, String accessToken) {
+        return new Request.Builder()
+                .url(getSharePointBaseUrl(tenantName) + "/sites/" + siteName + "/_api/web/GetFileById('" + uniqueId + "')?$select=Length")
+                .addHeader("Accept", "application/json;odata=nometadata")
+                .addHeader("Authorization", "Bearer " + accessToken)
+                .build();
+    }
+
+    private long parseFileLength(Response response, String tokenKey) throws IOException {
+        if (!response.isSuccessful()) {
+            if (response.code() == 401) {
+                AccessTokenCache.invalidate(tokenKey);
+            }
+            throw new UnexpectedResponseException(response);
+        }
+        return Long.parseLong(new JSONObject(response.body().string()).get("Length").toString());
+    }
+
+    private void cancelUploadSession(String tenantName, String siteName, String uniqueId, String uploadId, String accessToken, String tokenKey, String digestKey) {
+        try {
+            String url = buildUploadSessionUrl(tenantName, siteName, uniqueId, "CancelUpload", uploadId, -1);
+            postWithDigest(tenantName, siteName, url, RequestBody.create("", JSON), false, accessToken, tokenKey, digestKey);
+        } catch (Exception e) {
+            LogUtil.warn(getClass().getName(), "Unable to cancel upload session " + uploadId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the empty file an upload session fed chunk by chunk with {@link #uploadChunk} is opened on.
+     *
+     * @return the UniqueId of the file
+     */
+    public String startChunkedUpload(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String folderName, String fileName) throws IOException {
         String accessToken = getAccessToken(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken);
-        LogUtil.info("<- Generated Access Token -->", accessToken);
+        String tokenKey = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        String digestKey = FormDigestCache.getKey(tenantName, siteName, tokenKey);
+
+        if (createFolders) {
+            await(ensureFolderAsync(tenantName, siteName, folderName, accessToken, tokenKey, digestKey));
+        }
+
+        try (SharepointMetrics.Timer timer = SharepointMetrics.start(SharepointMetrics.PHASE_UPLOAD, tenantName, siteName)) {
+            String url = buildSharePointFileAddUrl(tenantName, siteName, folderName, fileName, true);
+            JSONObject emptyFile = postWithDigest(tenantName, siteName, url, RequestBody.create(new byte[0], OCTET_STREAM), true, accessToken, tokenKey, digestKey);
+            timer.success();
+            return emptyFile.getString("UniqueId");
+        }
+    }
 
-        String formDigest = getFormDigestValue(tenantName, siteName, accessToken);
-        LogUtil.info("<- Generated Form Digest Value: -->", formDigest);
+    /**
+     * Sends one chunk of an upload session: StartUpload for the chunk at offset 0, FinishUpload for
+     * the last one and ContinueUpload in between. A file of a single chunk is finished with an empty one.
+     *
+     * @return the offset acknowledged by SharePoint, which is where the next chunk starts
+     */
+    public long uploadChunk(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String uniqueId, String uploadId, long offset, RequestBody chunk, boolean last) throws IOException {
+        String accessToken = getAccessToken(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken);
+        String tokenKey = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        String digestKey = FormDigestCache.getKey(tenantName, siteName, tokenKey);
 
+        try (SharepointMetrics.Timer timer = SharepointMetrics.start(SharepointMetrics.PHASE_UPLOAD, tenantName, siteName)) {
+            long next;
+            if (offset > 0 && last) {
+                postWithDigest(tenantName, siteName, buildUploadSessionUrl(tenantName, siteName, uniqueId, "FinishUpload", uploadId, offset), chunk, false, accessToken, tokenKey, digestKey);
+                next = offset + chunk.contentLength();
+            } else {
+                String operation = offset == 0 ? "StartUpload" : "ContinueUpload";
+                JSONObject result = postWithDigest(tenantName, siteName, buildUploadSessionUrl(tenantName, siteName, uniqueId, operation, uploadId, offset), chunk, false, accessToken, tokenKey, digestKey);
+                next = Long.parseLong(result.get("value").toString());
+                if (next <= offset) {
+                    throw new IOException("Upload session did not advance past offset " + offset);
+                }
+                if (last) {
+                    postWithDigest(tenantName, siteName, buildUploadSessionUrl(tenantName, siteName, uniqueId, "FinishUpload", uploadId, next), RequestBody.create(new byte[0], OCTET_STREAM), false, accessToken, tokenKey, digestKey);
+                }
+            }
+            timer.success();
+            SharepointMetrics.addBytes("upload", tenantName, siteName, chunk.contentLength());
+            return next;
+        }
+    }
 
+    /**
+     * POSTs to SharePoint with a request digest. A rejected digest (403) is dropped
+     * from the cache and the request is sent once more with a fresh one.
+     */
+    private JSONObject postWithDigest(String tenantName, String siteName, String url, RequestBody body, boolean idempotent, String accessToken, String tokenKey, String digestKey) throws IOException {
+        String jsonResponse = postWithDigestForString(tenantName, siteName, url, body, idempotent, accessToken, tokenKey, digestKey);
+        return jsonResponse.isEmpty() ? new JSONObject() : new JSONObject(jsonResponse);
+    }
+
+    private String postWithDigestForString(String tenantName, String siteName, String url, RequestBody body, boolean idempotent, String accessToken, String tokenKey, String digestKey) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            String formDigest = getFormDigest(digestKey, tenantName, siteName, accessToken);
+            Request request = buildDigestPost(url, body, idempotent, formDigest, accessToken);
+
+            // Execute the request and handle the response
+            try (Response response = executeSharePoint(tenantName, request)) {
+                if (response.code() == 403 && attempt == 0) {
+                    // the cached digest was rejected, fetch a new one and retry once
+                    FormDigestCache.invalidate(digestKey);
+                    continue;
+                }
+                if (!response.isSuccessful()) {
+                    if (response.code() == 401) {
+                        AccessTokenCache.invalidate(tokenKey);
+                    }
+                    throw new UnexpectedResponseException(response);
+                }
+
+                return response.body().string();
+            }
+        }
+    }
+
+    /**
+     * @param idempotent whether the POST can be sent again after a failure, see {@link RetryPolicy#isIdempotent}
+     */
+    private Request buildDigestPost(String url, RequestBody body, boolean idempotent, String formDigest, String accessToken) {
         // Build the request with necessary headers
-        Request request = new Request.Builder()
-                .url(buildSharePointFileAddUrl(tenantName, siteName, folderName, fileName, true))
+        Request.Builder builder = new Request.Builder()
+                .url(url)
                 .post(body)
                 .addHeader("Accept", "application/json;odata=nometadata")
-                .addHeader("Content-Type", "application/octet-stream")
+                .addHeader("Content-Type", body.contentType() != null ? body.contentType().toString() : "application/octet-stream")
                 .addHeader("X-RequestDigest", formDigest)
-                .addHeader("Authorization", "Bearer " + accessToken)
-                .build();
+                .addHeader("Authorization", "Bearer " + accessToken);
+        return (idempotent ? RetryPolicy.idempotent(builder) : builder).build();
+    }
+
+    /**
+     * Deletes files by UniqueId, grouping up to {@value #BATCH_SIZE} of them in each OData $batch request.
+     * Every file is sent in its own changeset so that one failure does not roll back the others.
+     *
+     * @param recycle move the files to the recycle bin instead of deleting them permanently
+     * @return the HTTP status SharePoint returned for each UniqueId
+     */
+    public Map<String, Integer> deleteFilesFromSharePoint(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, List<String> documentIds, boolean recycle) throws IOException {
+        String accessToken = getAccessToken(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken);
+        String tokenKey = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        String digestKey = FormDigestCache.getKey(tenantName, siteName, tokenKey);
+
+        Map<String, Integer> statuses = new LinkedHashMap<>();
+        for (int from = 0; from < documentIds.size(); from += BATCH_SIZE) {
+            List<String> batch = documentIds.subList(from, Math.min(from + BATCH_SIZE, documentIds.size()));
+            String responseData;
+            try (SharepointMetrics.Timer timer = SharepointMetrics.start(SharepointMetrics.PHASE_DELETE, tenantName, siteName)) {
+                responseData = postWithDigestForString(tenantName, siteName, getBatchUrl(tenantName, siteName), buildDeleteBatch(tenantName, siteName, batch, recycle), false, accessToken, tokenKey, digestKey);
+                timer.success();
+            }
+            putBatchStatuses(statuses, batch, parseBatchResponse(responseData));
+        }
+        return statuses;
+    }
 
-        // Execute the request and handle the response
-        try (Response response = client.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Unexpected code " + response);
+    /**
+     * @return a $batch body deleting or recycling the files, each in its own changeset
+     */
+    private RequestBody buildDeleteBatch(String tenantName, String siteName, List<String> batch, boolean recycle) {
+        String boundary = "batch_" + UUID.randomUUID();
+        StringBuilder content = new StringBuilder();
+        for (String documentId : batch) {
+            String changeset = "changeset_" + UUID.randomUUID();
+            String fileUrl = getSharePointBaseUrl(tenantName) + "/sites/" + siteName + "/_api/web/GetFileById('" + documentId + "')";
+            content.append("--").append(boundary).append("\r\n")
+                    .append("Content-Type: multipart/mixed; boundary=").append(changeset).append("\r\n\r\n")
+                    .append("--").append(changeset).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-Transfer-Encoding: binary\r\n\r\n");
+            if (recycle) {
+                content.append("POST ").append(fileUrl).append("/recycle() HTTP/1.1\r\n");
+            } else {
+                content.append("DELETE ").append(fileUrl).append(" HTTP/1.1\r\n")
+                        .append("If-Match: *\r\n");
             }
+            content.append("Accept: application/json;odata=nometadata\r\n\r\n")
+                    .append("--").append(changeset).append("--\r\n");
+        }
+        content.append("--").append(boundary).append("--\r\n");
+        return RequestBody.create(content.toString(), MediaType.get("multipart/mixed; boundary=" + boundary));
+    }
 
-            // Parse the JSON response to extract the UniqueId
-            String jsonResponse = response.body().string();
-            JSONObject jsonObject = new JSONObject(jsonResponse);
-            String uniqueId = jsonObject.getString("UniqueId");
-            return uniqueId;
+    private void putBatchStatuses(Map<String, Integer> statuses, List<String> batch, List<BatchResult> results) {
+        for (int i = 0; i < batch.size(); i++) {
+            statuses.put(batch.get(i), i < results.size() ? results.get(i).status : -1);
+        }
+    }
+
+    private String getBatchUrl(String tenantName, String siteName) {
+        return getSharePointBaseUrl(tenantName) + "/sites/" + siteName + "/_api/$batch";
+    }
+
+    /**
+     * Reads the name, size and modified date of files by UniqueId, grouping up to {@value #BATCH_SIZE}
+     * GetFileById calls in each OData $batch request.
+     *
+     * @return the file properties for each UniqueId, or null for a file that no longer exists.
+     *         UniqueIds whose lookup failed for another reason are left out.
+     */
+    public Map<String, JSONObject> getFilesFromSharePoint(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, List<String> documentIds) throws IOException {
+        String accessToken = getAccessToken(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken);
+        String tokenKey = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        String digestKey = FormDigestCache.getKey(tenantName, siteName, tokenKey);
+
+        Map<String, JSONObject> files = new LinkedHashMap<>();
+        for (int from = 0; from < documentIds.size(); from += BATCH_SIZE) {
+            List<String> batch = documentIds.subList(from, Math.min(from + BATCH_SIZE, documentIds.size()));
+            String boundary = "batch_" + UUID.randomUUID();
+
+            StringBuilder content = new StringBuilder();
+            for (String documentId : batch) {
+                content.append("--").append(boundary).append("\r\n")
+                        .append("Content-Type: application/http\r\n")
+                        .append("Content-Transfer-Encoding: binary\r\n\r\n")
+                        .append("GET ").append(getSharePointBaseUrl(tenantName)).append("/sites/").append(siteName)
+                        .append("/_api/web/GetFileById('").append(documentId).append("')?$select=Name,Length,TimeLastModified HTTP/1.1\r\n")
+                        .append("Accept: application/json;odata=nometadata\r\n\r\n");
+            }
+            content.append("--").append(boundary).append("--\r\n");
+
+            RequestBody body = RequestBody.create(content.toString(), MediaType.get("multipart/mixed; boundary=" + boundary));
+            String responseData;
+            try (SharepointMetrics.Timer timer = SharepointMetrics.start(SharepointMetrics.PHASE_METADATA, tenantName, siteName)) {
+                responseData = postWithDigestForString(tenantName, siteName, getBatchUrl(tenantName, siteName), body, true, accessToken, tokenKey, digestKey);
+                timer.success();
+            }
+
+            List<BatchResult> results = parseBatchResponse(responseData);
+            for (int i = 0; i < batch.size() && i < results.size(); i++) {
+                BatchResult result = results.get(i);
+                if (result.status == 200 && result.body != null) {
+                    files.put(batch.get(i), new JSONObject(result.body));
+                } else if (result.status == 404) {
+                    files.put(batch.get(i), null);
+                } else {
+                    LogUtil.warn(getClass().getName(), "Unable to read file " + batch.get(i) + ", status " + result.status);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Splits a $batch response into the status and JSON body of each part, in the order of the requests.
+     */
+    private List<BatchResult> parseBatchResponse(String responseData) {
+        List<BatchResult> results = new ArrayList<>();
+        Matcher matcher = BATCH_STATUS.matcher(responseData);
+        List<int[]> positions = new ArrayList<>();
+        while (matcher.find()) {
+            positions.add(new int[]{matcher.start(), Integer.parseInt(matcher.group(1))});
+        }
+        for (int i = 0; i < positions.size(); i++) {
+            int end = i + 1 < positions.size() ? positions.get(i + 1)[0] : responseData.length();
+            String part = responseData.substring(positions.get(i)[0], end);
+            int open = part.indexOf('{');
+            int close = part.lastIndexOf('}');
+            results.add(new BatchResult(positions.get(i)[1], open != -1 && close > open ? part.substring(open, close + 1) : null));
+        }
+        return results;
+    }
+
+    private static class BatchResult {
+        private final int status;
+        private final String body;
+
+        BatchResult(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private Response executeSharePoint(String tenantName, Request request) throws IOException {
+        return execute(tenantName, request.url().host(), request);
+    }
+
+    private Response executeAccessControl(String tenantId, Request request) throws IOException {
+        return execute(tenantId, request.url().host(), request);
+    }
+
+    /**
+     * Executes the call on the pooled client of the tenant and host, within the adaptive concurrency
+     * limit of that client and the {@link CircuitBreaker} of the tenant and site. Throttled (429, 503)
+     * calls, and transient failures of idempotent ones, are retried according to the {@link RetryPolicy},
+     * unless the breaker opens meanwhile. A throttled call told to retry later than
+     * {@link RetryPolicy#MAX_BLOCKING_DELAY_MILLIS} is returned as is rather than holding the thread.
+     * The permits are released once the response headers arrive, so reading the body of a download
+     * does not hold them. The caller must close the returned response.
+     */
+    private Response execute(String tenant, String host, Request request) throws IOException {
+        OkHttpClient client = SharepointClientRegistry.getClient(tenant, host, clientSettings);
+        AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.forKey(tenant + "|" + host);
+        CircuitBreaker breaker = CircuitBreaker.forKey(getBreakerKey(tenant, request), breakerSettings);
+        boolean idempotent = RetryPolicy.isIdempotent(request);
+
+        for (int attempt = 0; ; attempt++) {
+            CircuitBreaker.Permit permit = breaker.acquire();
+            try {
+                limiter.acquire();
+            } catch (IOException e) {
+                permit.release(CircuitBreaker.Outcome.IGNORED, 0);
+                throw e;
+            }
+            long started = System.nanoTime();
+            Response response;
+            try {
+                response = client.newCall(request).execute();
+            } catch (IOException e) {
+                limiter.release(AdaptiveConcurrencyLimiter.Outcome.IGNORED);
+                permit.release(CircuitBreaker.Outcome.FAILURE, System.nanoTime() - started);
+                if (!idempotent || attempt >= retryPolicy.getMaxRetries()) {
+                    throw e;
+                }
+                SharepointMetrics.recordRetry("io");
+                long delay = Math.min(retryPolicy.getDelay(attempt + 1, null), RetryPolicy.MAX_BLOCKING_DELAY_MILLIS);
+                LogUtil.warn(getClass().getName(), "Request to " + host + " failed, retrying in " + delay + " ms: " + e.getMessage());
+                sleep(delay);
+                continue;
+            }
+
+            int code = response.code();
+            boolean throttled = RetryPolicy.isThrottled(code);
+            permit.release(getBreakerOutcome(code), System.nanoTime() - started);
+            long delay = RetryPolicy.isRetryable(code, idempotent) && attempt < retryPolicy.getMaxRetries() ? retryPolicy.getDelay(attempt + 1, response) : -1;
+            if (delay >= 0 && delay <= RetryPolicy.MAX_BLOCKING_DELAY_MILLIS) {
+                limiter.release(throttled ? AdaptiveConcurrencyLimiter.Outcome.THROTTLED : AdaptiveConcurrencyLimiter.Outcome.IGNORED);
+                SharepointMetrics.recordRetry(String.valueOf(code));
+                response.close();
+                LogUtil.warn(getClass().getName(), "Request to " + host + " returned " + code + ", retrying in " + delay + " ms");
+                sleep(delay);
+                continue;
+            }
+
+            limiter.release(throttled ? AdaptiveConcurrencyLimiter.Outcome.THROTTLED : AdaptiveConcurrencyLimiter.Outcome.SUCCESS);
+            SharepointMetrics.recordStatus(code);
+            return response;
         }
     }
 
+    /**
+     * @return the tenant and site of a SharePoint call, the tenant and host of any other call
+     */
+    private static String getBreakerKey(String tenant, Request request) {
+        List<String> segments = request.url().pathSegments();
+        if (segments.size() > 1 && "sites".equalsIgnoreCase(segments.get(0))) {
+            return tenant + "|" + segments.get(1);
+        }
+        return tenant + "|" + request.url().host();
+    }
+
+    private static CircuitBreaker.Outcome getBreakerOutcome(int code) {
+        return code >= 500 ? CircuitBreaker.Outcome.FAILURE : CircuitBreaker.Outcome.SUCCESS;
+    }
+
+    private void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    private String getSharePointBaseUrl(String tenantName) {
+        return sharepointBaseUrl != null ? sharepointBaseUrl : "https://" + tenantName + ".sharepoint.com";
+    }
 
     private String getFormDigestURL(String tenantName, String siteName) {
-        return "https://" + tenantName + ".sharepoint.com/sites/" + siteName + "/_api/contextinfo";
+        return getSharePointBaseUrl(tenantName) + "/sites/" + siteName + "/_api/contextinfo";
     }
 
     private String getAccessToken(String applicationId, String tenantName, String tenantId, String clientId, String clientSecret, String refreshToken) throws IOException {
-        LogUtil.info("", "<- Start Get Access Token -->");
-        OkHttpClient client = new OkHttpClient();
+        String key = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        return AccessTokenCache.getToken(key, () -> requestAccessToken(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken));
+    }
+
+    private String getAccessTokenKey(String applicationId, String tenantName, String tenantId, String clientId) {
+        return AccessTokenCache.getKey(tenantId, clientId, getResourceFormattedString(applicationId, tenantName, tenantId));
+    }
+
+    private AccessTokenCache.AccessToken requestAccessToken(String applicationId, String tenantName, String tenantId, String clientId, String clientSecret, String refreshToken) throws IOException {
+        LogUtil.debug(getClass().getName(), "Requesting an access token for " + tenantName);
+
+        Request request = buildAccessTokenRequest(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken);
+        try (SharepointMetrics.Timer timer = SharepointMetrics.start(SharepointMetrics.PHASE_TOKEN, tenantName, "");
+             Response response = executeAccessControl(tenantId, request)) {
+            AccessTokenCache.AccessToken token = parseAccessToken(response);
+            timer.success();
+            return token;
+        }
+    }
 
+    private Request buildAccessTokenRequest(String applicationId, String tenantName, String tenantId, String clientId, String clientSecret, String refreshToken) {
         String url = getAccessTokenURL(tenantId);
 
         MultipartBody requestBody = new MultipartBody.Builder()
@@ -71,53 +629,83 @@ public class SharepointAPIHelper {
                 .addFormDataPart("refresh_token", refreshToken)
                 .build();
 
-        Request request = new Request.Builder()
+        // the token request changes nothing on the server, so it is sent again on failure like a GET
+        return RetryPolicy.idempotent(new Request.Builder()
                 .url(url)
-                .post(requestBody)
+                .post(requestBody))
                 .build();
+    }
 
-        try (Response response = client.newCall(request).execute()) {
-            // Reading the response body
-            String responseBody = response.body() != null ? response.body().string() : "null";
-            LogUtil.info("", "Response Status Code: " + response.code());
-            LogUtil.info("", "Response Body: " + responseBody);
+    private AccessTokenCache.AccessToken parseAccessToken(Response response) throws IOException {
+        // Reading the response body, which is never logged as it carries the access token
+        String responseBody = response.body() != null ? response.body().string() : "null";
 
-            if (!response.isSuccessful()) {
-                LogUtil.info(response.body().toString(), "");
-                throw new IOException("Unexpected code " + response.code() + " with body " + responseBody);
-            }
+        if (!response.isSuccessful()) {
+            throw new IOException("Unexpected code " + response.code() + " when requesting an access token: " + getErrorDescription(responseBody));
+        }
+
+        JSONObject jsonObject = new JSONObject(responseBody);
+        return new AccessTokenCache.AccessToken(jsonObject.getString("access_token"), jsonObject.optLong("expires_in", 3600));
+    }
 
-            JSONObject jsonObject = new JSONObject(responseBody);
-            return jsonObject.getString("access_token");
+    /**
+     * @return the error description of an ACS error response, which unlike a successful one carries no token
+     */
+    private String getErrorDescription(String responseBody) {
+        try {
+            JSONObject error = new JSONObject(responseBody);
+            return error.optString("error_description", error.optString("error", ""));
+        } catch (JSONException e) {
+            return "";
         }
     }
 
     public String getFormDigestValue(String tenantName, String siteName, String accessToken) throws IOException {
-        OkHttpClient client = new OkHttpClient();
+        return requestFormDigest(tenantName, siteName, accessToken).getString("FormDigestValue");
+    }
+
+    private String getFormDigest(String digestKey, String tenantName, String siteName, String accessToken) throws IOException {
+        String formDigest = FormDigestCache.get(digestKey);
+        if (formDigest == null) {
+            JSONObject contextInfo = requestFormDigest(tenantName, siteName, accessToken);
+            formDigest = contextInfo.getString("FormDigestValue");
+            FormDigestCache.put(digestKey, formDigest, contextInfo.optLong("FormDigestTimeoutSeconds", 1800));
+        }
+        return formDigest;
+    }
+
+    private JSONObject requestFormDigest(String tenantName, String siteName, String accessToken) throws IOException {
+        Request request = buildFormDigestRequest(tenantName, siteName, accessToken);
+        try (SharepointMetrics.Timer timer = SharepointMetrics.start(SharepointMetrics.PHASE_DIGEST, tenantName, siteName);
+             Response response = executeSharePoint(tenantName, request)) {
+            JSONObject contextInfo = parseContextInfo(response);
+            timer.success();
+            return contextInfo;
+        }
+    }
 
+    private Request buildFormDigestRequest(String tenantName, String siteName, String accessToken) {
         String url = getFormDigestURL(tenantName, siteName);
         RequestBody body = RequestBody.create("", JSON); // Empty POST body
-        Request request = new Request.Builder()
+        return RetryPolicy.idempotent(new Request.Builder()
                 .url(url)
                 .addHeader("Authorization", "Bearer " + accessToken)
                 .addHeader("Accept", "application/json;odata=nometadata")
-                .post(body)
+                .post(body))
                 .build();
+    }
 
-        try (Response response = client.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Unexpected code " + response);
-            }
-
-            String responseData = response.body().string();
-            LogUtil.info("Response Data From Form Digest: ", responseData);
-            JSONObject jsonObject = new JSONObject(responseData);
-            return jsonObject.getString("FormDigestValue");
+    private JSONObject parseContextInfo(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new IOException("Unexpected code " + response);
         }
+
+        String responseData = response.body().string();
+        return new JSONObject(responseData);
     }
 
     private String getAccessTokenURL(String tenantId) {
-        return "https://accounts.accesscontrol.windows.net/" + tenantId + "/tokens/OAuth/2";
+        return accessControlBaseUrl + "/" + tenantId + "/tokens/OAuth/2";
     }
 
     private String getClientIdFormattedString(String clientId, String tenantId) {
@@ -129,44 +717,568 @@ public class SharepointAPIHelper {
     }
 
     private String buildSharePointFileAddUrl(String tenantName, String siteName, String folderName, String fileName, boolean overwrite) {
-        return "https://" + tenantName + ".sharepoint.com/sites/" + siteName +
+        return getSharePointBaseUrl(tenantName) + "/sites/" + siteName +
                 "/_api/web/GetFolderByServerRelativeUrl('/sites/" + siteName + "/Shared Documents/" + folderName +
                 "')/Files/add(url='" + fileName + "',overwrite=" + overwrite + ")";
     }
 
+    private String buildFolderAddUrl(String tenantName, String siteName, String folderPath) {
+        return getSharePointBaseUrl(tenantName) + "/sites/" + siteName +
+                "/_api/web/folders/add('/sites/" + siteName + "/Shared Documents/" + folderPath.replace("'", "''") + "')";
+    }
+
+    private String buildMoveUrl(String tenantName, String siteName, String uniqueId, String folderName, String fileName) {
+        return getSharePointBaseUrl(tenantName) + "/sites/" + siteName +
+                "/_api/web/GetFileById('" + uniqueId + "')/moveTo(newurl='" + ("/sites/" + siteName + "/Shared Documents/" + folderName + "/" + fileName).replace("'", "''") + "',flags=1)";
+    }
+
+    private String buildUploadSessionUrl(String tenantName, String siteName, String uniqueId, String operation, String uploadId, long fileOffset) {
+        String url = getSharePointBaseUrl(tenantName) + "/sites/" + siteName +
+                "/_api/web/GetFileById('" + uniqueId + "')/" + operation + "(uploadId=guid'" + uploadId + "'";
+        if ("ContinueUpload".equals(operation) || "FinishUpload".equals(operation)) {
+            url += ",fileOffset=" + fileOffset;
+        }
+        return url + ")";
+    }
+
     public Response downloadFileFromSharePoint(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String folderName, String documentID) throws IOException {
-        OkHttpClient client = new OkHttpClient();
+        return downloadFileFromSharePoint(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, folderName, documentID, Collections.emptyMap());
+    }
+
+    /**
+     * @param requestHeaders headers such as Range or If-None-Match forwarded to SharePoint. Besides a
+     *                       successful response, this may return a 304 Not Modified or a 416 Range Not Satisfiable.
+     */
+    public Response downloadFileFromSharePoint(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String folderName, String documentID, Map<String, String> requestHeaders) throws IOException {
         String accessToken = getAccessToken(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken);
-        LogUtil.info("<- Generated Access Token -->", accessToken);
 
+        Request request = buildDownloadRequest(tenantName, siteName, documentID, accessToken, requestHeaders);
+
+        // Execute the request and handle the response, the body is relayed by the caller
+        Response response;
+        try (SharepointMetrics.Timer timer = SharepointMetrics.start(SharepointMetrics.PHASE_DOWNLOAD, tenantName, siteName)) {
+            response = checkDownloadResponse(executeSharePoint(tenantName, request), getAccessTokenKey(applicationId, tenantName, tenantId, clientId));
+            timer.success();
+        }
+
+        return response;
+
+    }
 
+    private Request buildDownloadRequest(String tenantName, String siteName, String documentID, String accessToken, Map<String, String> requestHeaders) {
         // Build the download URL
         String url = buildFileAccessURL(tenantName, siteName, documentID);
-        LogUtil.info("Download URL: ", url);
-
 
-        // Build the request with necessary headers
-        Request request = new Request.Builder()
+        // Build the request with necessary headers, identity encoding keeps Content-Length and ranges accurate
+        Request.Builder requestBuilder = new Request.Builder()
                 .url(url)
                 .addHeader("Accept", "application/octet-stream")
-                .addHeader("Authorization", "Bearer " + accessToken)
-                .build();
+                .addHeader("Accept-Encoding", "identity")
+                .addHeader("Authorization", "Bearer " + accessToken);
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            requestBuilder.header(header.getKey(), header.getValue());
+        }
+        return requestBuilder.build();
+    }
+
+    /**
+     * @return the response, unless it is an error, in which case it is closed
+     */
+    private Response checkDownloadResponse(Response response, String tokenKey) throws IOException {
+        if (!response.isSuccessful() && response.code() != 304 && response.code() != 416) {
+            if (response.code() == 401) {
+                AccessTokenCache.invalidate(tokenKey);
+            }
+            response.close();
+            throw new IOException("Unexpected code " + response);
+        }
+        return response;
+    }
+
 
+    /**
+     * Asynchronous variant of {@link #uploadFileToSharePoint}. The token lookup, digest lookup and transfer
+     * are chained on enqueued OkHttp calls, so no thread is held while they are in flight, and retries are
+     * scheduled instead of slept.
+     *
+     * @return a future completed with the UniqueId of the uploaded file
+     */
+    public CompletableFuture<String> uploadAsync(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String folderName, String fileName, File file) {
+        String tokenKey = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        String digestKey = FormDigestCache.getKey(tenantName, siteName, tokenKey);
+        String fileAddUrl = buildSharePointFileAddUrl(tenantName, siteName, folderName, fileName, true);
 
-        // Execute the request and handle the response
-        Response response = client.newCall(request).execute();
-            if (!response.isSuccessful()) {
-                LogUtil.info("Download Response: ", response.body().toString());
-                throw new IOException("Unexpected code " + response);
+        return getAccessTokenAsync(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken).thenCompose(accessToken -> {
+            if (!createFolders) {
+                return CompletableFuture.completedFuture(accessToken);
             }
+            return ensureFolderAsync(tenantName, siteName, folderName, accessToken, tokenKey, digestKey).thenApply(created -> accessToken);
+        }).thenCompose(accessToken -> {
+            SharepointMetrics.Timer timer = SharepointMetrics.startDetached(SharepointMetrics.PHASE_UPLOAD, tenantName, siteName);
+            CompletableFuture<String> upload;
+            if (file.length() > largeFileThreshold && file.length() > chunkSize) {
+                UploadSession session = new UploadSession(tenantName, siteName, file, accessToken, tokenKey, digestKey, timer);
+                upload = postWithDigestAsync(tenantName, siteName, fileAddUrl, RequestBody.create(new byte[0], OCTET_STREAM), true, accessToken, tokenKey, digestKey, timer, 0)
+                        .thenCompose(emptyFile -> {
+                            // the session is opened on an empty file created up front
+                            session.uniqueId = new JSONObject(emptyFile).getString("UniqueId");
+                            LogUtil.info(getClass().getName(), "Uploading " + file.getName() + " (" + file.length() + " bytes) in chunks of " + chunkSize + " bytes");
+                            return uploadChunksAsync(session, 0, 0);
+                        });
+            } else {
+                upload = postWithDigestAsync(tenantName, siteName, fileAddUrl, new FileRequestBody(file, OCTET_STREAM), true, accessToken, tokenKey, digestKey, timer, 0)
+                        .thenApply(jsonResponse -> new JSONObject(jsonResponse).getString("UniqueId"));
+            }
+            return timed(timer, upload).thenApply(uniqueId -> {
+                SharepointMetrics.addBytes("upload", tenantName, siteName, file.length());
+                return uniqueId;
+            });
+        });
+    }
 
-            return response;
+    /**
+     * Sends the chunk at the offset, then the following ones. A chunk whose outcome is unknown is sent
+     * again from the same offset after a delay, and the upload resumes after it if SharePoint refuses it
+     * as already committed, like {@link #uploadLargeFile}. The session is cancelled once the retries are
+     * exhausted.
+     */
+    private CompletableFuture<String> uploadChunksAsync(UploadSession session, long offset, int failures) {
+        long length = session.file.length();
+        long chunkLength = Math.min(chunkSize, length - offset);
+        boolean last = offset + chunkLength >= length;
+        String operation = offset == 0 ? "StartUpload" : (last ? "FinishUpload" : "ContinueUpload");
+        String url = buildUploadSessionUrl(session.tenantName, session.siteName, session.uniqueId, operation, session.uploadId, offset);
+
+        return postWithDigestAsync(session.tenantName, session.siteName, url, new FileRequestBody(session.file, OCTET_STREAM, offset, chunkLength), false, session.accessToken, session.tokenKey, session.digestKey, session.timer, 0)
+                .handle((jsonResponse, e) -> {
+                    Throwable error = unwrap(e);
+                    if (error == null) {
+                        JSONObject result = jsonResponse.isEmpty() ? new JSONObject() : new JSONObject(jsonResponse);
+                        if (last) {
+                            return CompletableFuture.completedFuture(result.optString("UniqueId", session.uniqueId));
+                        }
+                        return advance(session, offset, Long.parseLong(result.get("value").toString()));
+                    }
+
+                    if (failures > 0 && isRefused(error)) {
+                        // the chunk was committed before the failure, unless a refused FinishUpload comes from a session that is gone
+                        if (!last) {
+                            return advance(session, offset, offset + chunkLength);
+                        }
+                        Throwable refusal = error;
+                        return getFileLengthAsync(session.tenantName, session.siteName, session.uniqueId, session.accessToken, session.tokenKey, session.timer)
+                                .thenCompose(uploaded -> uploaded == length ? CompletableFuture.completedFuture(session.uniqueId) : SharepointAPIHelper.<String>failed(refusal))
+                                .whenComplete((uniqueId, lookupError) -> {
+                                    if (lookupError != null) {
+                                        cancelUploadSessionAsync(session);
+                                    }
+                                });
+                    }
+                    if (!isIndeterminate(error) || failures + 1 > retryPolicy.getMaxRetries()) {
+                        cancelUploadSessionAsync(session);
+                        return SharepointAPIHelper.<String>failed(error);
+                    }
+                    long delay = retryPolicy.getDelay(failures + 1, null);
+                    LogUtil.warn(getClass().getName(), operation + " at offset " + offset + " failed, retrying in " + delay + " ms (" + (failures + 1) + "/" + retryPolicy.getMaxRetries() + "): " + error.getMessage());
+                    return delay(delay).thenCompose(v -> uploadChunksAsync(session, offset, failures + 1));
+                })
+                .thenCompose(next -> next);
+    }
+
+    private CompletableFuture<String> advance(UploadSession session, long offset, long next) {
+        if (next <= offset) {
+            cancelUploadSessionAsync(session);
+            return failed(new IOException("Upload session did not advance past offset " + offset));
+        }
+        return uploadChunksAsync(session, next, 0);
+    }
+
+    private void cancelUploadSessionAsync(UploadSession session) {
+        String url = buildUploadSessionUrl(session.tenantName, session.siteName, session.uniqueId, "CancelUpload", session.uploadId, -1);
+        postWithDigestAsync(session.tenantName, session.siteName, url, RequestBody.create("", JSON), false, session.accessToken, session.tokenKey, session.digestKey, session.timer, 0)
+                .whenComplete((jsonResponse, e) -> {
+                    if (e != null) {
+                        LogUtil.warn(getClass().getName(), "Unable to cancel upload session " + session.uploadId + ": " + unwrap(e).getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Asynchronous variant of {@link #downloadFileFromSharePoint(String, String, String, String, String, String, String, String, String, Map)}.
+     * The future completes once the response headers arrive; the caller reads the body and must close the response.
+     */
+    public CompletableFuture<Response> downloadAsync(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String documentID, Map<String, String> requestHeaders) {
+        String tokenKey = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        return getAccessTokenAsync(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken).thenCompose(accessToken -> {
+            Request request = buildDownloadRequest(tenantName, siteName, documentID, accessToken, requestHeaders);
+            SharepointMetrics.Timer timer = SharepointMetrics.startDetached(SharepointMetrics.PHASE_DOWNLOAD, tenantName, siteName);
+            return timed(timer, executeAsync(tenantName, request, timer).thenCompose(response -> {
+                try {
+                    return CompletableFuture.completedFuture(checkDownloadResponse(response, tokenKey));
+                } catch (IOException e) {
+                    return failed(e);
+                }
+            }));
+        });
+    }
+
+    /**
+     * Looks up the pre-authenticated download URL of a file in the default document library, which the
+     * browser can be redirected to so that the content does not pass through Joget. SharePoint signs
+     * the URL with a token of its own that expires after about an hour.
+     *
+     * @return the download URL, or null if SharePoint did not return one
+     */
+    public String getDownloadUrl(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String documentID) throws IOException {
+        return await(getDownloadUrlAsync(applicationId, tenantName, clientId, clientSecret, refreshToken, tenantId, siteName, documentID));
+    }
+
+    /**
+     * Asynchronous variant of {@link #getDownloadUrl}.
+     */
+    public CompletableFuture<String> getDownloadUrlAsync(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String documentID) {
+        String tokenKey = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        return getAccessTokenAsync(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken).thenCompose(accessToken -> {
+            Request request = new Request.Builder()
+                    .url(getSharePointBaseUrl(tenantName) + "/sites/" + siteName + "/_api/v2.0/drive/items/" + documentID + "?select=id,@content.downloadUrl")
+                    .addHeader("Accept", "application/json")
+                    .addHeader("Authorization", "Bearer " + accessToken)
+                    .build();
+            SharepointMetrics.Timer timer = SharepointMetrics.startDetached(SharepointMetrics.PHASE_METADATA, tenantName, siteName);
+            return timed(timer, executeAsync(tenantName, request, timer).thenCompose(response -> {
+                try (Response closed = response) {
+                    if (!closed.isSuccessful()) {
+                        if (closed.code() == 401) {
+                            AccessTokenCache.invalidate(tokenKey);
+                        }
+                        throw new IOException("Unexpected code " + closed);
+                    }
+                    String downloadUrl = new JSONObject(closed.body().string()).optString("@content.downloadUrl", null);
+                    return CompletableFuture.completedFuture(downloadUrl != null && !downloadUrl.isEmpty() ? downloadUrl : null);
+                } catch (IOException e) {
+                    return failed(e);
+                }
+            }));
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #deleteFilesFromSharePoint}, sending the $batch requests one after the other.
+     *
+     * @return a future completed with the HTTP status SharePoint returned for each UniqueId
+     */
+    public CompletableFuture<Map<String, Integer>> deleteAsync(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, List<String> documentIds, boolean recycle) {
+        String tokenKey = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        String digestKey = FormDigestCache.getKey(tenantName, siteName, tokenKey);
+
+        return getAccessTokenAsync(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken).thenCompose(accessToken -> {
+            Map<String, Integer> statuses = new LinkedHashMap<>();
+            CompletableFuture<Void> batches = CompletableFuture.completedFuture(null);
+            for (int from = 0; from < documentIds.size(); from += BATCH_SIZE) {
+                List<String> batch = documentIds.subList(from, Math.min(from + BATCH_SIZE, documentIds.size()));
+                batches = batches.thenCompose(v -> {
+                    SharepointMetrics.Timer timer = SharepointMetrics.startDetached(SharepointMetrics.PHASE_DELETE, tenantName, siteName);
+                    return timed(timer, postWithDigestAsync(tenantName, siteName, getBatchUrl(tenantName, siteName), buildDeleteBatch(tenantName, siteName, batch, recycle), false, accessToken, tokenKey, digestKey, timer, 0))
+                            .thenAccept(responseData -> putBatchStatuses(statuses, batch, parseBatchResponse(responseData)));
+                });
+            }
+            return batches.thenApply(v -> statuses);
+        });
+    }
+
+    /**
+     * Moves a file to another folder of Shared Documents, replacing a file of the same name there.
+     * The file keeps its UniqueId.
+     */
+    public CompletableFuture<Void> moveAsync(String applicationId, String tenantName, String clientId, String clientSecret, String refreshToken, String tenantId, String siteName, String uniqueId, String folderName, String fileName) {
+        String tokenKey = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        String digestKey = FormDigestCache.getKey(tenantName, siteName, tokenKey);
+
+        return getAccessTokenAsync(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken).thenCompose(accessToken -> {
+            if (!createFolders) {
+                return CompletableFuture.completedFuture(accessToken);
+            }
+            return ensureFolderAsync(tenantName, siteName, folderName, accessToken, tokenKey, digestKey).thenApply(created -> accessToken);
+        }).thenCompose(accessToken -> {
+            SharepointMetrics.Timer timer = SharepointMetrics.startDetached(SharepointMetrics.PHASE_UPLOAD, tenantName, siteName);
+            return timed(timer, postWithDigestAsync(tenantName, siteName, buildMoveUrl(tenantName, siteName, uniqueId, folderName, fileName), RequestBody.create("", JSON), false, accessToken, tokenKey, digestKey, timer, 0))
+                    .thenApply(response -> (Void) null);
+        });
+    }
+
+    /**
+     * Waits for an asynchronous call, for callers that need the result on the current thread.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for SharePoint");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Creates the folder and each missing parent in Shared Documents, from the top down. Adding a folder
+     * that already exists succeeds, and each folder is added at most once per node, see {@link FolderCache}.
+     */
+    private CompletableFuture<Void> ensureFolderAsync(String tenantName, String siteName, String folderName, String accessToken, String tokenKey, String digestKey) {
+        CompletableFuture<Void> parents = CompletableFuture.completedFuture(null);
+        String path = "";
+        for (String level : folderName.split("/")) {
+            if (level.trim().isEmpty()) {
+                continue;
+            }
+            path = path.isEmpty() ? level : path + "/" + level;
+            String folderPath = path;
+            parents = parents.thenCompose(created -> FolderCache.ensure(FolderCache.getKey(tenantName, siteName, folderPath), () -> {
+                SharepointMetrics.Timer timer = SharepointMetrics.startDetached(SharepointMetrics.PHASE_FOLDER, tenantName, siteName);
+                return timed(timer, postWithDigestAsync(tenantName, siteName, buildFolderAddUrl(tenantName, siteName, folderPath), RequestBody.create("", JSON), true, accessToken, tokenKey, digestKey, timer, 0))
+                        .thenApply(response -> (Void) null);
+            }));
+        }
+        return parents;
+    }
+
+    private CompletableFuture<String> getAccessTokenAsync(String applicationId, String tenantName, String tenantId, String clientId, String clientSecret, String refreshToken) {
+        String key = getAccessTokenKey(applicationId, tenantName, tenantId, clientId);
+        return AccessTokenCache.getTokenAsync(key, () -> {
+            Request request = buildAccessTokenRequest(applicationId, tenantName, tenantId, clientId, clientSecret, refreshToken);
+            SharepointMetrics.Timer timer = SharepointMetrics.startDetached(SharepointMetrics.PHASE_TOKEN, tenantName, "");
+            return timed(timer, executeAsync(tenantId, request, timer).thenCompose(response -> {
+                try (Response closed = response) {
+                    return CompletableFuture.completedFuture(parseAccessToken(closed));
+                } catch (IOException e) {
+                    return failed(e);
+                }
+            }));
+        });
+    }
+
+    private CompletableFuture<String> getFormDigestAsync(String digestKey, String tenantName, String siteName, String accessToken) {
+        String formDigest = FormDigestCache.get(digestKey);
+        if (formDigest != null) {
+            return CompletableFuture.completedFuture(formDigest);
+        }
+
+        Request request = buildFormDigestRequest(tenantName, siteName, accessToken);
+        SharepointMetrics.Timer timer = SharepointMetrics.startDetached(SharepointMetrics.PHASE_DIGEST, tenantName, siteName);
+        return timed(timer, executeAsync(tenantName, request, timer).thenCompose(response -> {
+            try (Response closed = response) {
+                JSONObject contextInfo = parseContextInfo(closed);
+                String value = contextInfo.getString("FormDigestValue");
+                FormDigestCache.put(digestKey, value, contextInfo.optLong("FormDigestTimeoutSeconds", 1800));
+                return CompletableFuture.completedFuture(value);
+            } catch (IOException e) {
+                return failed(e);
+            }
+        }));
+    }
+
+    /**
+     * Asynchronous variant of {@link #postWithDigestForString}, sending the request once more with a fresh
+     * digest if SharePoint rejects the cached one.
+     */
+    private CompletableFuture<String> postWithDigestAsync(String tenantName, String siteName, String url, RequestBody body, boolean idempotent, String accessToken, String tokenKey, String digestKey, SharepointMetrics.Timer timer, int attempt) {
+        return getFormDigestAsync(digestKey, tenantName, siteName, accessToken)
+                .thenCompose(formDigest -> executeAsync(tenantName, buildDigestPost(url, body, idempotent, formDigest, accessToken), timer))
+                .thenCompose(response -> {
+                    try (Response closed = response) {
+                        if (closed.code() == 403 && attempt == 0) {
+                            FormDigestCache.invalidate(digestKey);
+                            return postWithDigestAsync(tenantName, siteName, url, body, idempotent, accessToken, tokenKey, digestKey, timer, attempt + 1);
+                        }
+                        if (!closed.isSuccessful()) {
+                            if (closed.code() == 401) {
+                                AccessTokenCache.invalidate(tokenKey);
+                            }
+                            throw new UnexpectedResponseException(closed);
+                        }
+                        return CompletableFuture.completedFuture(closed.body().string());
+                    } catch (IOException e) {
+                        return failed(e);
+                    }
+                });
+    }
+
+    /**
+     * Enqueues the call on the pooled client of the tenant and host, once the adaptive concurrency limiter
+     * grants a permit. Waiting for the permit and for retry delays does not hold a thread, so Retry-After
+     * is honored however long it is (up to the cap of the {@link RetryPolicy}). Otherwise the same as
+     * {@link #execute}: the caller must close the response the future completes with.
+     */
+    private CompletableFuture<Response> executeAsync(String tenant, Request request, SharepointMetrics.Timer timer) {
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        enqueue(tenant, request.url().host(), request, timer, 0, result);
+        return result;
+    }
+
+    private void enqueue(String tenant, String host, Request request, SharepointMetrics.Timer timer, int attempt, CompletableFuture<Response> result) {
+        OkHttpClient client = SharepointClientRegistry.getClient(tenant, host, clientSettings);
+        AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.forKey(tenant + "|" + host);
+        CircuitBreaker.Permit breakerPermit;
+        try {
+            breakerPermit = CircuitBreaker.forKey(getBreakerKey(tenant, request), breakerSettings).acquire();
+        } catch (CircuitBreaker.RejectedException e) {
+            result.completeExceptionally(e);
+            return;
+        }
 
+        limiter.acquireAsync(getScheduler()).whenComplete((permit, timeout) -> {
+            if (timeout != null) {
+                breakerPermit.release(CircuitBreaker.Outcome.IGNORED, 0);
+                result.completeExceptionally(timeout);
+                return;
+            }
+            try {
+                client.newCall(request).enqueue(callback(tenant, host, request, timer, attempt, result, limiter, breakerPermit, System.nanoTime()));
+            } catch (RuntimeException e) {
+                limiter.release(AdaptiveConcurrencyLimiter.Outcome.IGNORED);
+                breakerPermit.release(CircuitBreaker.Outcome.IGNORED, 0);
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private Callback callback(String tenant, String host, Request request, SharepointMetrics.Timer timer, int attempt, CompletableFuture<Response> result, AdaptiveConcurrencyLimiter limiter,
+                              CircuitBreaker.Permit breakerPermit, long started) {
+        return new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                limiter.release(AdaptiveConcurrencyLimiter.Outcome.IGNORED);
+                breakerPermit.release(CircuitBreaker.Outcome.FAILURE, System.nanoTime() - started);
+                if (!RetryPolicy.isIdempotent(request) || attempt >= retryPolicy.getMaxRetries()) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                SharepointMetrics.recordRetry(timer, "io");
+                long delay = retryPolicy.getDelay(attempt + 1, null);
+                LogUtil.warn(SharepointAPIHelper.class.getName(), "Request to " + host + " failed, retrying in " + delay + " ms: " + e.getMessage());
+                delay(delay).thenRun(() -> enqueue(tenant, host, request, timer, attempt + 1, result));
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                int code = response.code();
+                boolean throttled = RetryPolicy.isThrottled(code);
+                breakerPermit.release(getBreakerOutcome(code), System.nanoTime() - started);
+                if (RetryPolicy.isRetryable(code, RetryPolicy.isIdempotent(request)) && attempt < retryPolicy.getMaxRetries()) {
+                    limiter.release(throttled ? AdaptiveConcurrencyLimiter.Outcome.THROTTLED : AdaptiveConcurrencyLimiter.Outcome.IGNORED);
+                    SharepointMetrics.recordRetry(timer, String.valueOf(code));
+                    long delay = retryPolicy.getDelay(attempt + 1, response);
+                    response.close();
+                    LogUtil.warn(SharepointAPIHelper.class.getName(), "Request to " + host + " returned " + code + ", retrying in " + delay + " ms");
+                    delay(delay).thenRun(() -> enqueue(tenant, host, request, timer, attempt + 1, result));
+                    return;
+                }
+
+                limiter.release(throttled ? AdaptiveConcurrencyLimiter.Outcome.THROTTLED : AdaptiveConcurrencyLimiter.Outcome.SUCCESS);
+                SharepointMetrics.recordStatus(timer, code);
+                if (!result.complete(response)) {
+                    response.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a future completed after the delay, without holding a thread while waiting
+     */
+    private static CompletableFuture<Void> delay(long millis) {
+        CompletableFuture<Void> delayed = new CompletableFuture<>();
+        getScheduler().schedule(() -> delayed.complete(null), millis, TimeUnit.MILLISECONDS);
+        return delayed;
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "sharepoint-retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    public static synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
     }
 
+    /**
+     * Closes the timer once the future completes, as a success if it completes normally.
+     */
+    private static <T> CompletableFuture<T> timed(SharepointMetrics.Timer timer, CompletableFuture<T> future) {
+        return future.whenComplete((result, e) -> {
+            if (e == null) {
+                timer.success();
+            }
+            timer.close();
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    /**
+     * Thrown for an unsuccessful response, with its status code.
+     */
+    public static class UnexpectedResponseException extends IOException {
+        private final int code;
+
+        UnexpectedResponseException(Response response) {
+            super("Unexpected code " + response);
+            this.code = response.code();
+        }
+
+        public int getCode() {
+            return code;
+        }
+    }
+
+    /**
+     * State of an asynchronous chunked upload.
+     */
+    private static class UploadSession {
+        private final String tenantName;
+        private final String siteName;
+        private final File file;
+        private final String accessToken;
+        private final String tokenKey;
+        private final String digestKey;
+        private final SharepointMetrics.Timer timer;
+        private final String uploadId = UUID.randomUUID().toString();
+        private volatile String uniqueId;
+
+        UploadSession(String tenantName, String siteName, File file, String accessToken, String tokenKey, String digestKey, SharepointMetrics.Timer timer) {
+            this.tenantName = tenantName;
+            this.siteName = siteName;
+            this.file = file;
+            this.accessToken = accessToken;
+            this.tokenKey = tokenKey;
+            this.digestKey = digestKey;
+            this.timer = timer;
+        }
+    }
 
     public String buildFileAccessURL(String tenantName, String siteName, String fileId) {
-        return "https://" + tenantName + ".sharepoint.com/sites/" + siteName + "/_api/Web/GetFileById('" + fileId + "')/$value";
+        return getSharePointBaseUrl(tenantName) + "/sites/" + siteName + "/_api/Web/GetFileById('" + fileId + "')/$value";
     }
 
 
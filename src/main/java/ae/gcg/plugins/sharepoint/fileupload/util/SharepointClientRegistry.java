@@ -0,0 +1,130 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import org.joget.commons.util.LogUtil;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived OkHttpClients keyed by tenant and host, so that calls to the same
+ * SharePoint site or ACS endpoint reuse pooled connections instead of doing a
+ * new TLS handshake every time.
+ * <p>
+ * Elements of the same tenant with different settings share the connection pool
+ * and dispatcher of the first client created for the tenant and host, and get a
+ * client derived from it with their own timeouts. The dispatcher limits grow to
+ * the largest ones asked for, the pool keeps the size it was created with.
+ * Clients are only closed when the plugin stops.
+ */
+public class SharepointClientRegistry {
+    private static final Map<String, PooledClient> clients = new ConcurrentHashMap<>();
+
+    public static OkHttpClient getClient(String tenant, String host, ClientSettings settings) {
+        PooledClient pooled = clients.computeIfAbsent(tenant + "|" + host, k -> new PooledClient(k, settings));
+        return pooled.getClient(settings);
+    }
+
+    /**
+     * Cancels outstanding calls and releases all pooled connections and dispatcher threads.
+     */
+    public static void shutdown() {
+        for (PooledClient pooled : clients.values()) {
+            pooled.close();
+        }
+        clients.clear();
+    }
+
+    public static JSONObject getPoolStatistics() {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, PooledClient> entry : clients.entrySet()) {
+            OkHttpClient client = entry.getValue().client;
+            ConnectionPool pool = client.connectionPool();
+            Dispatcher dispatcher = client.dispatcher();
+
+            JSONObject poolStats = new JSONObject();
+            poolStats.put("connections", pool.connectionCount());
+            poolStats.put("idleConnections", pool.idleConnectionCount());
+            poolStats.put("activeConnections", pool.connectionCount() - pool.idleConnectionCount());
+            poolStats.put("maxIdleConnections", entry.getValue().settings.getMaxIdleConnections());
+            poolStats.put("runningCalls", dispatcher.runningCallsCount());
+            poolStats.put("queuedCalls", dispatcher.queuedCallsCount());
+            poolStats.put("maxRequests", dispatcher.getMaxRequests());
+            poolStats.put("maxRequestsPerHost", dispatcher.getMaxRequestsPerHost());
+            stats.put(entry.getKey(), poolStats);
+        }
+        return stats;
+    }
+
+    private static class PooledClient {
+        private final ClientSettings settings;
+        private final OkHttpClient client;
+        private final Map<String, OkHttpClient> derivedClients = new ConcurrentHashMap<>();
+
+        PooledClient(String key, ClientSettings settings) {
+            this.settings = settings;
+
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(r, "sharepoint-" + key + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            Dispatcher dispatcher = new Dispatcher(executor);
+            dispatcher.setMaxRequests(settings.getMaxRequests());
+            dispatcher.setMaxRequestsPerHost(settings.getMaxRequestsPerHost());
+
+            this.client = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(settings.getMaxIdleConnections(), settings.getKeepAliveDuration(), TimeUnit.SECONDS))
+                    .dispatcher(dispatcher)
+                    .connectTimeout(settings.getConnectTimeout(), TimeUnit.SECONDS)
+                    .readTimeout(settings.getReadTimeout(), TimeUnit.SECONDS)
+                    .writeTimeout(settings.getWriteTimeout(), TimeUnit.SECONDS)
+                    .build();
+            LogUtil.debug(SharepointClientRegistry.class.getName(), "Created pooled client for " + key);
+        }
+
+        /**
+         * @return the pooled client, or a client sharing its pool and dispatcher with the timeouts of the settings
+         */
+        OkHttpClient getClient(ClientSettings requested) {
+            if (requested.equals(settings)) {
+                return client;
+            }
+            Dispatcher dispatcher = client.dispatcher();
+            synchronized (dispatcher) {
+                if (requested.getMaxRequests() > dispatcher.getMaxRequests()) {
+                    dispatcher.setMaxRequests(requested.getMaxRequests());
+                }
+                if (requested.getMaxRequestsPerHost() > dispatcher.getMaxRequestsPerHost()) {
+                    dispatcher.setMaxRequestsPerHost(requested.getMaxRequestsPerHost());
+                }
+            }
+            if (requested.getConnectTimeout() == settings.getConnectTimeout()
+                    && requested.getReadTimeout() == settings.getReadTimeout()
+                    && requested.getWriteTimeout() == settings.getWriteTimeout()) {
+                return client;
+            }
+            String timeouts = requested.getConnectTimeout() + "/" + requested.getReadTimeout() + "/" + requested.getWriteTimeout();
+            return derivedClients.computeIfAbsent(timeouts, k -> client.newBuilder()
+                    .connectTimeout(requested.getConnectTimeout(), TimeUnit.SECONDS)
+                    .readTimeout(requested.getReadTimeout(), TimeUnit.SECONDS)
+                    .writeTimeout(requested.getWriteTimeout(), TimeUnit.SECONDS)
+                    .build());
+        }
+
+        void close() {
+            client.dispatcher().cancelAll();
+            client.dispatcher().executorService().shutdown();
+            client.connectionPool().evictAll();
+        }
+    }
+}
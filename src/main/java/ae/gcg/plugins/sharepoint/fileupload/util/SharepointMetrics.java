@@ -0,0 +1,223 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory metrics of the calls made to SharePoint, broken down by phase, tenant
+ * and site, and written in the Prometheus text exposition format.
+ * <p>
+ * A phase is timed with {@link #start}; while it runs, statuses and retries
+ * reported by the HTTP layer are attributed to it.
+ */
+public class SharepointMetrics {
+    public static final String PHASE_TOKEN = "token";
+    public static final String PHASE_DIGEST = "digest";
+    public static final String PHASE_UPLOAD = "upload";
+    public static final String PHASE_DOWNLOAD = "download";
+    public static final String PHASE_DOWNLOAD_RELAY = "download_relay";
+    public static final String PHASE_DELETE = "delete";
+    public static final String PHASE_METADATA = "metadata";
+    public static final String PHASE_FOLDER = "folder";
+
+    private static final double[] BUCKETS = new double[]{0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+
+    private static final Map<String, Histogram> durations = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> bytes = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> retries = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicLong> inFlight = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Timer> current = new ThreadLocal<>();
+
+    /**
+     * Starts timing a phase on the current thread. The returned timer must be closed.
+     */
+    public static Timer start(String phase, String tenant, String site) {
+        Timer timer = new Timer(labels("phase", phase, "tenant", tenant, "site", site), current.get());
+        inFlight.computeIfAbsent(timer.labels, k -> new AtomicLong()).incrementAndGet();
+        current.set(timer);
+        return timer;
+    }
+
+    /**
+     * Starts timing a phase that is not bound to the current thread, e.g. an asynchronous call whose
+     * callbacks run on other threads. Statuses and retries are reported with the timer passed explicitly.
+     * The returned timer must be closed.
+     */
+    public static Timer startDetached(String phase, String tenant, String site) {
+        Timer timer = new Timer(labels("phase", phase, "tenant", tenant, "site", site), null);
+        inFlight.computeIfAbsent(timer.labels, k -> new AtomicLong()).incrementAndGet();
+        return timer;
+    }
+
+    /**
+     * Records the HTTP status of a response within the current phase, counting it as an error if it is not successful.
+     */
+    public static void recordStatus(int status) {
+        recordStatus(current.get(), status);
+    }
+
+    /**
+     * Records the HTTP status of a response within the phase of the given timer, if any.
+     */
+    public static void recordStatus(Timer timer, int status) {
+        if (timer != null) {
+            timer.status = status;
+            if (status >= 400) {
+                increment(errors, timer.labels + ",status=\"" + status + "\"");
+            }
+        }
+    }
+
+    /**
+     * @param reason the HTTP status that caused the retry, or "io" for a failed connection
+     */
+    public static void recordRetry(String reason) {
+        recordRetry(current.get(), reason);
+    }
+
+    public static void recordRetry(Timer timer, String reason) {
+        increment(retries, (timer != null ? timer.labels : labels("phase", "", "tenant", "", "site", "")) + ",reason=\"" + escape(reason) + "\"");
+    }
+
+    /**
+     * @param direction "upload" or "download"
+     */
+    public static void addBytes(String direction, String tenant, String site, long count) {
+        if (count > 0) {
+            bytes.computeIfAbsent(labels("direction", direction, "tenant", tenant, "site", site), k -> new LongAdder()).add(count);
+        }
+    }
+
+    public static void clear() {
+        durations.clear();
+        bytes.clear();
+        errors.clear();
+        retries.clear();
+        inFlight.clear();
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format, version 0.0.4
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# HELP sharepoint_phase_duration_seconds Duration of SharePoint calls by phase\n");
+        out.append("# TYPE sharepoint_phase_duration_seconds histogram\n");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(durations).entrySet()) {
+            Histogram histogram = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                out.append("sharepoint_phase_duration_seconds_bucket{").append(entry.getKey()).append(",le=\"").append(BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += histogram.buckets[BUCKETS.length].sum();
+            out.append("sharepoint_phase_duration_seconds_bucket{").append(entry.getKey()).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append("sharepoint_phase_duration_seconds_sum{").append(entry.getKey()).append("} ").append(histogram.sumNanos.sum() / 1e9).append('\n');
+            out.append("sharepoint_phase_duration_seconds_count{").append(entry.getKey()).append("} ").append(cumulative).append('\n');
+        }
+
+        appendCounters(out, "sharepoint_bytes_total", "counter", "Bytes sent to and received from SharePoint", bytes);
+        appendCounters(out, "sharepoint_errors_total", "counter", "Unsuccessful SharePoint responses by HTTP status, or exception", errors);
+        appendCounters(out, "sharepoint_retries_total", "counter", "Retried SharePoint calls by reason", retries);
+
+        out.append("# HELP sharepoint_in_flight Calls to SharePoint in progress by phase\n");
+        out.append("# TYPE sharepoint_in_flight gauge\n");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(inFlight).entrySet()) {
+            out.append("sharepoint_in_flight{").append(entry.getKey()).append("} ").append(entry.getValue().get()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void appendCounters(StringBuilder out, String name, String type, String help, Map<String, LongAdder> counters) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            out.append(name).append('{').append(entry.getKey()).append("} ").append(entry.getValue().sum()).append('\n');
+        }
+    }
+
+    private static void increment(Map<String, LongAdder> counters, String labels) {
+        counters.computeIfAbsent(labels, k -> new LongAdder()).increment();
+    }
+
+    private static String labels(String... namesAndValues) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            labels.append(namesAndValues[i]).append("=\"").append(escape(namesAndValues[i + 1])).append('"');
+        }
+        return labels.toString();
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            Arrays.setAll(buckets, i -> new LongAdder());
+        }
+
+        void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+        }
+    }
+
+    public static class Timer implements AutoCloseable {
+        private final String labels;
+        private final Timer parent;
+        private final long startNanos = System.nanoTime();
+        private boolean success = false;
+        private int status = 0;
+
+        Timer(String labels, Timer parent) {
+            this.labels = labels;
+            this.parent = parent;
+        }
+
+        /**
+         * Marks the phase as successful, otherwise it is counted as an error when closed.
+         */
+        public void success() {
+            success = true;
+        }
+
+        @Override
+        public void close() {
+            durations.computeIfAbsent(labels, k -> new Histogram()).observe(System.nanoTime() - startNanos);
+            AtomicLong gauge = inFlight.get(labels);
+            if (gauge != null) {
+                gauge.decrementAndGet();
+            }
+            if (!success && status < 400) {
+                // failed without an error response, e.g. a timeout or an unexpected body
+                increment(errors, labels + ",status=\"exception\"");
+            }
+            if (current.get() == this) {
+                if (parent != null) {
+                    current.set(parent);
+                } else {
+                    current.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the asynchronous uploads in flight per tenant when the attachments of form submissions
+ * are uploaded in parallel. Uploads over the bound are queued and started as others complete,
+ * without a thread waiting for them.
+ * <p>
+ * Queued uploads are started in a loop by a single thread at a time rather than from the
+ * completion of the previous upload, so uploads that fail before going async, e.g. on a missing
+ * file, do not nest one start inside another.
+ */
+public class UploadLimiter {
+    private static final Map<String, UploadLimiter> limiters = new ConcurrentHashMap<>();
+
+    private final Deque<Runnable> queued = new ArrayDeque<>();
+    private int inFlight = 0;
+    private int concurrency;
+    private boolean draining = false;
+
+    private UploadLimiter(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Starts the upload once fewer than {@code concurrency} uploads of the tenant are in flight.
+     *
+     * @return a future completed with the result of the upload
+     */
+    public static <T> CompletableFuture<T> submit(String tenant, int concurrency, Supplier<CompletableFuture<T>> upload) {
+        int size = Math.max(1, concurrency);
+        UploadLimiter limiter = limiters.computeIfAbsent(tenant, k -> new UploadLimiter(size));
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable start = () -> {
+            CompletableFuture<T> started;
+            try {
+                started = upload.get();
+            } catch (Throwable e) {
+                started = new CompletableFuture<>();
+                started.completeExceptionally(e);
+            }
+            started.whenComplete((value, e) -> {
+                limiter.release();
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+
+        synchronized (limiter) {
+            // the concurrency may have been changed in the plugin properties
+            limiter.concurrency = size;
+            limiter.queued.add(start);
+        }
+        limiter.drain();
+        return result;
+    }
+
+    public static void shutdown() {
+        limiters.clear();
+    }
+
+    private void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        drain();
+    }
+
+    /**
+     * Starts queued uploads while the bound allows, unless another thread is already doing so, in
+     * which case that thread also picks up the permit released here.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                next = inFlight < concurrency ? queued.poll() : null;
+                if (next == null) {
+                    draining = false;
+                    return;
+                }
+                inFlight++;
+            }
+            next.run();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.joget.apps.app.service.AppUtil;
+import org.joget.apps.form.dao.FormDataDao;
+import org.joget.apps.form.model.FormRow;
+import org.joget.apps.form.model.FormRowSet;
+import org.joget.commons.util.LogUtil;
+import org.joget.commons.util.SecurityUtil;
+import org.joget.commons.util.SetupManager;
+import org.joget.commons.util.UuidGenerator;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable on-disk outbox for uploads done in the background. Each entry is a
+ * directory under wflow/app_sharepoint_outbox holding the file and an
+ * entry.json manifest, so pending uploads survive restarts. Once uploaded,
+ * the pending placeholder stored in the form row is replaced with the UniqueId,
+ * updating that column only so that concurrent changes to the row are kept.
+ * When wflow is shared by several nodes, each entry is claimed with a file lock
+ * so that a single node processes it at a time.
+ */
+public class UploadOutbox {
+    public static final String PENDING_PREFIX = "pending:";
+
+    private static final String MANIFEST = "entry.json";
+    private static final String LOCK = ".lock";
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long POLL_INTERVAL_SECONDS = 30;
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long ORPHAN_TIMEOUT_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_WRITE_BACK_ATTEMPTS = 3;
+
+    private static final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+    private static ScheduledExecutorService scheduler;
+    private static ExecutorService workers;
+
+    public static File getDirectory() {
+        return new File(SetupManager.getBaseDirectory(), "app_sharepoint_outbox");
+    }
+
+    public static boolean isPending(String documentId) {
+        return documentId != null && documentId.startsWith(PENDING_PREFIX);
+    }
+
+    /**
+     * Moves the file into the outbox and schedules its upload.
+     *
+     * @param connection plugin properties of the element, credentials still encrypted
+     * @return the placeholder to store as documentId until the upload is done
+     */
+    public static String enqueue(File file, String fileName, Map<String, Object> connection, String formDefId, String tableName, String fieldId) throws IOException {
+        String entryId = UuidGenerator.getInstance().getUuid();
+        File entryDir = new File(getDirectory(), entryId);
+        if (!entryDir.mkdirs()) {
+            throw new IOException("Unable to create outbox entry " + entryDir);
+        }
+        Files.move(file.toPath(), new File(entryDir, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        JSONObject entry = new JSONObject();
+        entry.put("id", entryId);
+        entry.put("fileName", fileName);
+        entry.put("formDefId", formDefId);
+        entry.put("tableName", tableName);
+        entry.put("fieldId", fieldId);
+        entry.put("connection", SecurityUtil.encrypt(new JSONObject(connection).toString()));
+        entry.put("status", "pending");
+        entry.put("attempts", 0);
+        entry.put("nextAttempt", 0);
+        entry.put("created", System.currentTimeMillis());
+        writeManifest(entryDir, entry);
+
+        start();
+        workers.execute(() -> process(entryDir, false));
+        return PENDING_PREFIX + entryId;
+    }
+
+    public static synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "sharepoint-outbox-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "sharepoint-outbox-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        workers = pool;
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (File entryDir : listEntries()) {
+                workers.execute(() -> process(entryDir, false));
+            }
+        }, POLL_INTERVAL_SECONDS, POLL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            workers.shutdownNow();
+            scheduler = null;
+            workers = null;
+        }
+    }
+
+    /**
+     * Queues every entry on the workers right away, including failed ones, and returns the status
+     * before they are processed. Their outcome shows in later status calls.
+     */
+    public static JSONObject drain() {
+        start();
+        File[] entries = listEntries();
+        for (File entryDir : entries) {
+            workers.execute(() -> process(entryDir, true));
+        }
+        JSONObject status = getStatus();
+        status.put("queued", entries.length);
+        return status;
+    }
+
+    public static JSONObject getStatus() {
+        Map<String, Integer> counts = new HashMap<>();
+        JSONArray entries = new JSONArray();
+        for (File entryDir : listEntries()) {
+            try {
+                JSONObject entry = readManifest(entryDir);
+                String status = entry.getString("status");
+                counts.merge(status, 1, Integer::sum);
+
+                JSONObject summary = new JSONObject();
+                summary.put("id", entry.getString("id"));
+                summary.put("fileName", entry.getString("fileName"));
+                summary.put("status", status);
+                summary.put("attempts", entry.getInt("attempts"));
+                summary.put("lastError", entry.optString("lastError"));
+                entries.put(summary);
+            } catch (Exception e) {
+                counts.merge("unreadable", 1, Integer::sum);
+            }
+        }
+        JSONObject status = new JSONObject();
+        status.put("counts", counts);
+        status.put("entries", entries);
+        return status;
+    }
+
+    private static File[] listEntries() {
+        File[] entries = getDirectory().listFiles(f -> f.isDirectory() && new File(f, MANIFEST).isFile());
+        return entries != null ? entries : new File[0];
+    }
+
+    /**
+     * Processes the entry unless this or another node already does. The in-memory set covers this
+     * node, on which the file lock would throw, and the lock on the entry covers the other nodes.
+     */
+    private static void process(File entryDir, boolean force) {
+        if (!inProgress.add(entryDir.getName())) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(new File(entryDir, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            if (lock == null || !new File(entryDir, MANIFEST).isFile()) {
+                // claimed by another node, or done by it since listed
+                return;
+            }
+            process(entryDir, readManifest(entryDir), force);
+        } catch (NoSuchFileException e) {
+            // deleted by another node since listed
+        } catch (Exception e) {
+            LogUtil.error(UploadOutbox.class.getName(), e, "Unable to process outbox entry " + entryDir.getName());
+        } finally {
+            inProgress.remove(entryDir.getName());
+        }
+    }
+
+    private static void process(File entryDir, JSONObject entry, boolean force) throws IOException {
+        String status = entry.getString("status");
+        long now = System.currentTimeMillis();
+        if (!force && ("failed".equals(status) || now < entry.getLong("nextAttempt"))) {
+            return;
+        }
+
+        try {
+            if (!"uploaded".equals(status)) {
+                entry.put("documentId", upload(entryDir, entry));
+                entry.put("status", "uploaded");
+                entry.put("attempts", 0);
+                writeManifest(entryDir, entry);
+            }
+
+            if (writeBack(entry)) {
+                deleteEntry(entryDir);
+            } else if (now - entry.getLong("created") > ORPHAN_TIMEOUT_MILLIS) {
+                // the form submission never saved its row
+                LogUtil.warn(UploadOutbox.class.getName(), "No record references outbox entry " + entry.getString("id") + ", deleting " + entry.getString("documentId") + " from SharePoint");
+                RemoteDeletion.delete(getConnection(entry), Collections.singletonList(entry.getString("documentId")));
+                deleteEntry(entryDir);
+            } else {
+                entry.put("nextAttempt", now + TimeUnit.SECONDS.toMillis(POLL_INTERVAL_SECONDS));
+                writeManifest(entryDir, entry);
+            }
+        } catch (Exception e) {
+            int attempts = entry.getInt("attempts") + 1;
+            entry.put("attempts", attempts);
+            entry.put("lastError", e.getMessage());
+            if (attempts >= MAX_ATTEMPTS && !"uploaded".equals(entry.getString("status"))) {
+                entry.put("status", "failed");
+            }
+            entry.put("nextAttempt", now + Math.min(MAX_RETRY_DELAY_MILLIS, TimeUnit.SECONDS.toMillis(30) << Math.min(attempts, 10)));
+            writeManifest(entryDir, entry);
+            LogUtil.warn(UploadOutbox.class.getName(), "Outbox upload of " + entry.getString("fileName") + " failed (attempt " + attempts + "): " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return plugin properties of the element, credentials still encrypted
+     */
+    private static Map<String, Object> getConnection(JSONObject entry) {
+        return new JSONObject(SecurityUtil.decrypt(entry.getString("connection"))).toMap();
+    }
+
+    private static String upload(File entryDir, JSONObject entry) throws IOException {
+        Map<String, Object> connection = getConnection(entry);
+        String fileName = entry.getString("fileName");
+
+        return new SharepointAPIHelper(connection).uploadFileToSharePoint(
+                (String) connection.get("applicationId"),
+                (String) connection.get("tenantName"),
+                (String) connection.get("clientId"),
+                SecurityUtil.decrypt((String) connection.get("clientSecret")),
+                SecurityUtil.decrypt((String) connection.get("refreshToken")),
+                (String) connection.get("tenantId"),
+                (String) connection.get("siteName"),
+                (String) connection.get("folderName"),
+                fileName,
+                new File(entryDir, fileName));
+    }
+
+    /**
+     * Replaces the pending placeholder in the form rows referencing the entry with the UniqueId.
+     * Only the file column is saved, and the column is read again just before saving, retrying when
+     * it changed meanwhile, so other changes made to the row since it was submitted are kept.
+     *
+     * @return false if no row references the entry yet
+     */
+    private static boolean writeBack(JSONObject entry) throws IOException {
+        String formDefId = entry.getString("formDefId");
+        String tableName = entry.getString("tableName");
+        String fieldId = entry.getString("fieldId");
+        String placeholder = PENDING_PREFIX + entry.getString("id");
+
+        FormDataDao formDataDao = (FormDataDao) AppUtil.getApplicationContext().getBean("formDataDao");
+        FormRowSet rows = formDataDao.find(formDefId, tableName, "WHERE e.customProperties." + fieldId + " LIKE ?",
+                new Object[]{"%" + placeholder + "%"}, null, null, null, null);
+        if (rows == null || rows.isEmpty()) {
+            return false;
+        }
+        for (FormRow row : rows) {
+            String value = row.getProperty(fieldId);
+            for (int attempt = 1; value != null && value.contains(placeholder); attempt++) {
+                FormRow current = formDataDao.load(formDefId, tableName, row.getId());
+                String currentValue = current != null ? current.getProperty(fieldId) : null;
+                if (value.equals(currentValue)) {
+                    FormRow update = new FormRow();
+                    update.setId(row.getId());
+                    update.setProperty(fieldId, value.replace(placeholder, entry.getString("documentId")));
+                    FormRowSet updates = new FormRowSet();
+                    updates.add(update);
+                    formDataDao.saveOrUpdate(formDefId, tableName, updates);
+                    break;
+                }
+                if (attempt >= MAX_WRITE_BACK_ATTEMPTS) {
+                    throw new IOException("Record " + row.getId() + " kept changing while replacing " + placeholder);
+                }
+                value = currentValue;
+            }
+        }
+        return true;
+    }
+
+    private static JSONObject readManifest(File entryDir) throws IOException {
+        return new JSONObject(new String(Files.readAllBytes(new File(entryDir, MANIFEST).toPath()), StandardCharsets.UTF_8));
+    }
+
+    private static void writeManifest(File entryDir, JSONObject entry) throws IOException {
+        File temp = new File(entryDir, MANIFEST + ".tmp");
+        Files.write(temp.toPath(), entry.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), new File(entryDir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteEntry(File entryDir) {
+        // the manifest goes first, so other nodes skip the entry once they get its lock
+        new File(entryDir, MANIFEST).delete();
+        File[] files = entryDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        entryDir.delete();
+    }
+}
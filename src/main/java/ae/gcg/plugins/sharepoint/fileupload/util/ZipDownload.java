@@ -0,0 +1,160 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import okhttp3.Response;
+import org.joget.commons.util.LogUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams several SharePoint files into one ZIP written straight to an output stream, without
+ * staging it on disk or in memory.
+ * <p>
+ * Up to {@code window} files are requested at once, in order. A requested file is only read
+ * while its entry is written, so the bodies waiting their turn stay on their connections and a
+ * slow client slows the reads from SharePoint down instead of filling buffers. A file that
+ * cannot be fetched is left out and listed in an errors.txt entry at the end.
+ */
+public class ZipDownload {
+    public static final int DEFAULT_WINDOW = 4;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public void add(Map<String, Object> connection, String documentId, String fileName) {
+        entries.add(new Entry(connection, documentId, fileName));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the ZIP and finishes it, leaving the output stream open.
+     *
+     * @throws IOException if writing to the output stream fails, files that cannot be fetched are not errors
+     */
+    public void write(OutputStream out, int window) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+        Deque<CompletableFuture<Response>> requested = new ArrayDeque<>();
+        Set<String> names = new HashSet<>();
+        List<String> errors = new ArrayList<>();
+        byte[] buffer = new byte[FileRequestBody.BUFFER_SIZE];
+        int next = 0;
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                while (next < entries.size() && next < i + Math.max(1, window)) {
+                    requested.add(fetch(entries.get(next++)));
+                }
+                Entry entry = entries.get(i);
+                Response response;
+                try {
+                    response = SharepointAPIHelper.await(requested.poll());
+                } catch (IOException e) {
+                    LogUtil.warn(ZipDownload.class.getName(), "Unable to fetch " + entry.documentId + " for a ZIP download: " + e.getMessage());
+                    errors.add(entry.fileName + ": " + e.getMessage());
+                    continue;
+                }
+
+                try (Response closed = response) {
+                    zip.putNextEntry(new ZipEntry(getUniqueName(names, entry.fileName)));
+                    InputStream in = closed.body().byteStream();
+                    long total = 0;
+                    while (true) {
+                        int read;
+                        try {
+                            read = in.read(buffer);
+                        } catch (IOException e) {
+                            // the entry keeps what was read, the client is told in errors.txt
+                            LogUtil.warn(ZipDownload.class.getName(), "Reading " + entry.documentId + " for a ZIP download failed: " + e.getMessage());
+                            errors.add(entry.fileName + ": incomplete, " + e.getMessage());
+                            break;
+                        }
+                        if (read == -1) {
+                            break;
+                        }
+                        zip.write(buffer, 0, read);
+                        total += read;
+                    }
+                    zip.closeEntry();
+                    SharepointMetrics.addBytes("download", getString(entry.connection, "tenantName"), getString(entry.connection, "siteName"), total);
+                }
+            }
+
+            if (!errors.isEmpty()) {
+                zip.putNextEntry(new ZipEntry(getUniqueName(names, "errors.txt")));
+                zip.write(String.join("\r\n", errors).getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+            zip.finish();
+            zip.flush();
+        } finally {
+            // the client went away, release the files still requested
+            for (CompletableFuture<Response> pending : requested) {
+                pending.thenAccept(Response::close);
+            }
+        }
+    }
+
+    private CompletableFuture<Response> fetch(Entry entry) {
+        Map<String, Object> connection = entry.connection;
+        return new SharepointAPIHelper(connection).downloadAsync(
+                getString(connection, "applicationId"),
+                getString(connection, "tenantName"),
+                getString(connection, "clientId"),
+                getString(connection, "clientSecret"),
+                getString(connection, "refreshToken"),
+                getString(connection, "tenantId"),
+                getString(connection, "siteName"),
+                entry.documentId,
+                Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @return the file name, numbered like "name (2).ext" if the ZIP already has an entry by that name
+     */
+    private static String getUniqueName(Set<String> names, String fileName) {
+        String name = fileName.replace('\\', '_').replace('/', '_');
+        if (names.add(name.toLowerCase())) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 2; ; i++) {
+            String numbered = base + " (" + i + ")" + extension;
+            if (names.add(numbered.toLowerCase())) {
+                return numbered;
+            }
+        }
+    }
+
+    private static String getString(Map<String, Object> connection, String key) {
+        Object value = connection.get(key);
+        return value != null ? value.toString() : "";
+    }
+
+    private static class Entry {
+        private final Map<String, Object> connection;
+        private final String documentId;
+        private final String fileName;
+
+        Entry(Map<String, Object> connection, String documentId, String fileName) {
+            this.connection = connection;
+            this.documentId = documentId;
+            this.fileName = fileName;
+        }
+    }
+}
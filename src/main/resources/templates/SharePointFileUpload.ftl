@@ -38,6 +38,17 @@
                     </li>
                 </#list>
             </#if>
+            <#if pendingFilePaths??>
+                <#list pendingFilePaths?keys as key>
+                    <li>
+                        <span class="name">${pendingFilePaths[key]!?html}</span> <em>@@ae.gcg.plugins.sharepoint.fileupload.pending@@</em>
+                        <#if element.properties.readonly! != 'true'>
+                            <a class="remove">@@form.fileupload.remove@@</a>
+                        </#if>
+                        <input type="hidden" name="${elementParamName!}_path" value="${key!?html}"/>
+                    </li>
+                </#list>
+            </#if>
             <#if filePaths??>
                 <#list filePaths?keys as key>
                     <li>
@@ -69,6 +80,20 @@
                     resizeQuality : "${element.properties.resizeQuality!}",
                     resizeMethod : "${element.properties.resizeMethod!}"
                 });
+                <#if relayChunkSize??>
+                var dropzone = $('#form-fileupload_${elementParamName!}_${element.properties.elementUniqueKey!}')[0].dropzone;
+                if (dropzone) {
+                    // files larger than a chunk are relayed to SharePoint chunk by chunk, a failed chunk is sent again
+                    $.extend(dropzone.options, {
+                        chunking : true,
+                        forceChunking : false,
+                        chunkSize : ${relayChunkSize?c},
+                        parallelChunkUploads : false,
+                        retryChunks : true,
+                        retryChunksLimit : 5
+                    });
+                }
+                </#if>
             });
         </script>
     </#if>
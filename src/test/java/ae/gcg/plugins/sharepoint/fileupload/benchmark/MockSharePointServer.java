@@ -0,0 +1,378 @@
+package ae.gcg.plugins.sharepoint.fileupload.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for SharePoint and the access control service, answering the calls made
+ * by SharepointAPIHelper: the ACS token, contextinfo, folders/add, Files/add, the upload session
+ * operations, moveTo, the length of an uploaded file and GetFileById('size-N')/$value, which streams N bytes.
+ * The drive item size-N returns a pre-authenticated download URL pointing to the latter, for the
+ * redirect download mode.
+ * <p>
+ * Latency, a bandwidth cap, throttling (429 with Retry-After) and failures (500) can be injected,
+ * as well as failures of given upload session operations, applied or not before failing. Point the
+ * plugin to it with the sharepointBaseUrl and accessControlBaseUrl properties. Run {@link #main} to
+ * start it on its own, e.g. for a Joget instance under load test. It also stands in for SharePoint
+ * in the unit tests.
+ */
+public class MockSharePointServer implements Closeable {
+    private static final Pattern DOWNLOAD_SIZE = Pattern.compile("GetFileById\\('size-(\\d+)'\\)/\\$value$");
+    private static final Pattern DRIVE_ITEM_SIZE = Pattern.compile("/_api/v2\\.0/drive/items/size-(\\d+)$");
+    private static final Pattern UPLOAD_SESSION = Pattern.compile("GetFileById\\('([^']+)'\\)/(StartUpload|ContinueUpload|FinishUpload|CancelUpload)\\(uploadId=guid'([^']+)'(?:,fileOffset=(\\d+))?\\)$");
+    private static final Pattern FILE = Pattern.compile("GetFileById\\('([^']+)'\\)$");
+    private static final Pattern FILE_ADD = Pattern.compile("GetFolderByServerRelativeUrl\\('([^']*)'\\)/Files/add\\(url='([^']*)'");
+    private static final Pattern MOVE = Pattern.compile("GetFileById\\('([^']+)'\\)/moveTo\\(newurl='(.*)',flags=1\\)$");
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Long> uploadSessions = new ConcurrentHashMap<>();
+    private final Map<String, Long> files = new ConcurrentHashMap<>();
+    private final Map<String, String> fileUrls = new ConcurrentHashMap<>();
+    private final List<String> uploadOperations = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, int[]> operationFailures = new HashMap<>();
+    private final Map<String, Boolean> operationFailuresApplied = new HashMap<>();
+
+    private volatile long latencyMillis = 0;
+    private volatile long bytesPerSecond = 0;
+    private volatile double throttleRate = 0;
+    private volatile double failureRate = 0;
+    private volatile int retryAfterSeconds = 1;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public MockSharePointServer() throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    public MockSharePointServer(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "mock-sharepoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Delays every response by the given time before it is sent.
+     */
+    public MockSharePointServer withLatency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Caps the transfer rate of each request and response body, 0 for no cap.
+     */
+    public MockSharePointServer withBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Answers the given fraction of requests with 429 Too Many Requests.
+     */
+    public MockSharePointServer withThrottleRate(double rate, int retryAfterSeconds) {
+        this.throttleRate = rate;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Answers the given fraction of requests with 500 Internal Server Error.
+     */
+    public MockSharePointServer withFailureRate(double rate) {
+        this.failureRate = rate;
+        return this;
+    }
+
+    /**
+     * Answers the next calls of an upload session operation with 500 Internal Server Error.
+     *
+     * @param operation StartUpload, ContinueUpload, FinishUpload or CancelUpload
+     * @param times     number of calls to fail
+     * @param applied   whether the call is applied before failing, as when SharePoint commits a chunk but
+     *                  the response is lost
+     */
+    public synchronized MockSharePointServer withFailingUploadOperation(String operation, int times, boolean applied) {
+        operationFailures.put(operation, new int[]{times});
+        operationFailuresApplied.put(operation, applied);
+        return this;
+    }
+
+    public String getBaseUrl() {
+        InetAddress address = server.getAddress().getAddress();
+        if (address.isAnyLocalAddress()) {
+            address = InetAddress.getLoopbackAddress();
+        }
+        return "http://" + address.getHostAddress() + ":" + server.getAddress().getPort();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the upload session operations received, in order, as operation@fileOffset
+     *         (StartUpload@0, ContinueUpload@1048576, CancelUpload, ...)
+     */
+    public List<String> getUploadOperations() {
+        synchronized (uploadOperations) {
+            return new ArrayList<>(uploadOperations);
+        }
+    }
+
+    /**
+     * @return the length of a file added or finished through an upload session, null if there is no such file
+     */
+    public Long getFileLength(String uniqueId) {
+        return files.get(uniqueId);
+    }
+
+    /**
+     * @return the server relative URL of a file added or moved, null if there is no such file
+     */
+    public String getFileUrl(String uniqueId) {
+        return fileUrls.get(uniqueId);
+    }
+
+    public int getUploadSessionCount() {
+        return uploadSessions.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            long received = drain(exchange.getRequestBody());
+            sleep(latencyMillis);
+
+            double dice = ThreadLocalRandom.current().nextDouble();
+            if (dice < throttleRate) {
+                throttled.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                exchange.sendResponseHeaders(429, -1);
+                return;
+            }
+            if (dice < throttleRate + failureRate) {
+                failed.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            Matcher download = DOWNLOAD_SIZE.matcher(path);
+            Matcher session = UPLOAD_SESSION.matcher(path);
+            Matcher driveItem = DRIVE_ITEM_SIZE.matcher(path);
+            Matcher file = FILE.matcher(path);
+            Matcher fileAdd = FILE_ADD.matcher(path);
+            Matcher move = MOVE.matcher(path);
+            if (path.endsWith("/tokens/OAuth/2")) {
+                sendJson(exchange, 200, "{\"access_token\":\"benchmark\",\"expires_in\":\"3600\"}");
+            } else if (path.endsWith("/_api/contextinfo")) {
+                sendJson(exchange, 200, "{\"FormDigestValue\":\"benchmark\",\"FormDigestTimeoutSeconds\":1800}");
+            } else if (path.contains("/folders/add(")) {
+                sendJson(exchange, 200, "{\"Exists\":true}");
+            } else if (fileAdd.find()) {
+                String uniqueId = UUID.randomUUID().toString();
+                files.put(uniqueId, received);
+                fileUrls.put(uniqueId, fileAdd.group(1) + "/" + fileAdd.group(2));
+                sendJson(exchange, 200, "{\"UniqueId\":\"" + uniqueId + "\"}");
+            } else if (move.find() && files.containsKey(move.group(1))) {
+                fileUrls.put(move.group(1), move.group(2).replace("''", "'"));
+                sendJson(exchange, 200, "{}");
+            } else if (driveItem.find()) {
+                String downloadUrl = getBaseUrl() + "/sites/benchmark/_api/Web/GetFileById('size-" + driveItem.group(1) + "')/$value?tempauth=" + UUID.randomUUID();
+                sendJson(exchange, 200, "{\"id\":\"size-" + driveItem.group(1) + "\",\"@content.downloadUrl\":\"" + downloadUrl + "\"}");
+            } else if (session.find()) {
+                handleUploadSession(exchange, session.group(1), session.group(2), session.group(3), session.group(4), received);
+            } else if (download.find()) {
+                long size = Long.parseLong(download.group(1));
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.getResponseHeaders().set("ETag", "\"size-" + size + "\"");
+                exchange.sendResponseHeaders(200, size);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    write(out, size);
+                }
+            } else if (file.find() && files.containsKey(file.group(1))) {
+                sendJson(exchange, 200, "{\"Length\":\"" + files.get(file.group(1)) + "\"}");
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleUploadSession(HttpExchange exchange, String uniqueId, String operation, String uploadId, String fileOffset, long received) throws IOException {
+        uploadOperations.add(fileOffset != null ? operation + "@" + fileOffset : operation);
+        boolean fail;
+        boolean applied;
+        synchronized (this) {
+            int[] remaining = operationFailures.get(operation);
+            fail = remaining != null && remaining[0]-- > 0;
+            applied = fail && operationFailuresApplied.get(operation);
+        }
+        if (fail && !applied) {
+            failed.incrementAndGet();
+            exchange.sendResponseHeaders(500, -1);
+            return;
+        }
+
+        int status = 200;
+        String json;
+        Long offset = uploadSessions.get(uploadId);
+        if ("CancelUpload".equals(operation)) {
+            uploadSessions.remove(uploadId);
+            files.remove(uniqueId);
+            json = "{}";
+        } else if ("StartUpload".equals(operation)) {
+            if (offset != null) {
+                status = 400;
+                json = "{\"error\":\"upload session " + uploadId + " already started\"}";
+            } else {
+                uploadSessions.put(uploadId, received);
+                json = "{\"value\":\"" + received + "\"}";
+            }
+        } else if (offset == null || fileOffset == null || offset != Long.parseLong(fileOffset)) {
+            status = 400;
+            json = "{\"error\":\"unexpected fileOffset " + fileOffset + ", expected " + offset + "\"}";
+        } else if ("ContinueUpload".equals(operation)) {
+            uploadSessions.put(uploadId, offset + received);
+            json = "{\"value\":\"" + (offset + received) + "\"}";
+        } else {
+            uploadSessions.remove(uploadId);
+            files.put(uniqueId, offset + received);
+            json = "{\"UniqueId\":\"" + uniqueId + "\",\"Length\":\"" + (offset + received) + "\"}";
+        }
+
+        if (fail) {
+            failed.incrementAndGet();
+            exchange.sendResponseHeaders(500, -1);
+            return;
+        }
+        sendJson(exchange, status, json);
+    }
+
+    private void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json;odata=nometadata");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long start = System.nanoTime();
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+            pace(start, total);
+        }
+        return total;
+    }
+
+    private void write(OutputStream out, long size) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long start = System.nanoTime();
+        for (long written = 0; written < size; ) {
+            int length = (int) Math.min(buffer.length, size - written);
+            out.write(buffer, 0, length);
+            written += length;
+            pace(start, written);
+        }
+    }
+
+    /**
+     * Sleeps until the bytes transferred since start fit in the bandwidth cap.
+     */
+    private void pace(long startNanos, long transferred) throws IOException {
+        long cap = bytesPerSecond;
+        if (cap > 0) {
+            long due = transferred * 1000L / cap;
+            long elapsed = (System.nanoTime() - startNanos) / 1000000L;
+            sleep(due - elapsed);
+        }
+    }
+
+    private void sleep(long millis) throws IOException {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Starts the server on its own. Arguments are key=value pairs: port (default 8089), latency (ms),
+     * bandwidth (bytes per second), throttle and failure (fractions of requests), retryAfter (seconds).
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = parseArguments(args);
+        MockSharePointServer server = new MockSharePointServer(new InetSocketAddress(Integer.parseInt(options.getOrDefault("port", "8089"))))
+                .withLatency(Long.parseLong(options.getOrDefault("latency", "0")))
+                .withBandwidth(Long.parseLong(options.getOrDefault("bandwidth", "0")))
+                .withThrottleRate(Double.parseDouble(options.getOrDefault("throttle", "0")), Integer.parseInt(options.getOrDefault("retryAfter", "1")))
+                .withFailureRate(Double.parseDouble(options.getOrDefault("failure", "0")));
+        System.out.println("SharePoint stand-in listening on " + server.getBaseUrl() + ", use it as sharepointBaseUrl and accessControlBaseUrl");
+    }
+
+    static Map<String, String> parseArguments(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator > 0) {
+                options.put(arg.substring(0, separator), arg.substring(separator + 1));
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,70 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+    private static final CircuitBreaker.Settings SETTINGS = new CircuitBreaker.Settings(32, 50, 20, 30);
+
+    @After
+    public void tearDown() {
+        CircuitBreaker.clear();
+    }
+
+    @Test
+    public void opensOnFailures() throws CircuitBreaker.RejectedException {
+        CircuitBreaker breaker = CircuitBreaker.forKey("tenant|site", SETTINGS);
+        failCalls(breaker, 10);
+
+        assertRejected(breaker);
+    }
+
+    @Test
+    public void keepsStateWhenSettingsDiffer() throws CircuitBreaker.RejectedException {
+        CircuitBreaker breaker = CircuitBreaker.forKey("tenant|site", SETTINGS);
+        failCalls(breaker, 10);
+
+        // another field of the site with other thresholds gets the same, still open, breaker
+        CircuitBreaker other = CircuitBreaker.forKey("tenant|site", new CircuitBreaker.Settings(64, 80, 20, 30));
+        assertSame(breaker, other);
+        assertRejected(other);
+    }
+
+    @Test
+    public void appliesSettingsOfLatestCall() throws CircuitBreaker.RejectedException {
+        CircuitBreaker.forKey("tenant|site", SETTINGS);
+        CircuitBreaker breaker = CircuitBreaker.forKey("tenant|site", new CircuitBreaker.Settings(2, 50, 20, 30));
+
+        List<CircuitBreaker.Permit> permits = new ArrayList<>();
+        permits.add(breaker.acquire());
+        permits.add(breaker.acquire());
+        assertRejected(breaker);
+
+        for (CircuitBreaker.Permit permit : permits) {
+            permit.release(CircuitBreaker.Outcome.SUCCESS, 0);
+        }
+        breaker.acquire().release(CircuitBreaker.Outcome.SUCCESS, 0);
+    }
+
+    private static void failCalls(CircuitBreaker breaker, int calls) throws CircuitBreaker.RejectedException {
+        for (int i = 0; i < calls; i++) {
+            breaker.acquire().release(CircuitBreaker.Outcome.FAILURE, 0);
+        }
+    }
+
+    private static void assertRejected(CircuitBreaker breaker) {
+        try {
+            breaker.acquire();
+            fail("The call should have been rejected");
+        } catch (CircuitBreaker.RejectedException e) {
+            assertEquals(1, CircuitBreaker.getStatistics().length());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DedupIndexTest {
+    private static final String HASH = "0123456789abcdef";
+
+    private Map<String, Object> properties;
+    private DedupIndex index;
+
+    @Before
+    public void setUp() {
+        properties = new HashMap<>();
+        properties.put("deduplicate", "true");
+        properties.put("tenantName", "tenant-" + UUID.randomUUID());
+        properties.put("siteName", "site");
+        properties.put("folderName", "folder");
+        index = DedupIndex.getInstance(properties);
+        index.put(HASH, 10, "doc", "record1");
+    }
+
+    @After
+    public void tearDown() {
+        index.remove(HASH);
+    }
+
+    @Test
+    public void releasesFileOfSingleRecord() {
+        assertFalse(DedupIndex.release(properties, "doc", "record1"));
+        assertNull(index.get(HASH, 10));
+    }
+
+    @Test
+    public void keepsFileUntilLastRecordReleasesIt() {
+        index.addReference(HASH, "doc", "record2");
+
+        assertTrue(DedupIndex.release(properties, "doc", "record1"));
+        assertEquals("doc", index.get(HASH, 10));
+        assertFalse(DedupIndex.release(properties, "doc", "record2"));
+        assertNull(index.get(HASH, 10));
+    }
+
+    @Test
+    public void countsEachAttachmentToTheSameRecord() {
+        index.addReference(HASH, "doc", "record1");
+
+        assertTrue(DedupIndex.release(properties, "doc", "record1"));
+        assertFalse(DedupIndex.release(properties, "doc", "record1"));
+    }
+
+    @Test
+    public void releasesAttachmentMadeBeforeRecordHadAnId() {
+        index.addReference(HASH, "doc", null);
+
+        assertTrue(DedupIndex.release(properties, "doc", "record1"));
+        assertFalse(DedupIndex.release(properties, "doc", "record2"));
+    }
+
+    @Test
+    public void keepsSharedFileRemovedByNoRecord() {
+        assertTrue(DedupIndex.release(properties, "doc", null));
+        assertEquals("doc", index.get(HASH, 10));
+    }
+
+    @Test
+    public void keepsFileWhenSameContentIsUploadedAgain() {
+        // e.g. another node uploaded the same content at once, or the duplicate could not be confirmed
+        index.put(HASH, 10, "doc2", "record2");
+        assertEquals("doc", index.get(HASH, 10));
+
+        assertFalse(DedupIndex.release(properties, "doc2", "record2"));
+        assertEquals("doc", index.get(HASH, 10));
+        assertFalse(DedupIndex.release(properties, "doc", "record1"));
+        assertNull(index.get(HASH, 10));
+    }
+
+    @Test
+    public void linksDuplicatesToRemainingFile() {
+        index.put(HASH, 10, "doc2", "record2");
+        index.addReference(HASH, "doc", "record3");
+
+        assertTrue(DedupIndex.release(properties, "doc", "record1"));
+        assertFalse(DedupIndex.release(properties, "doc", "record3"));
+        assertEquals("doc2", index.get(HASH, 10));
+        assertFalse(DedupIndex.release(properties, "doc2", "record2"));
+    }
+
+    @Test
+    public void movesReferencesWhenContentOfFileIsReplaced() {
+        index.put(HASH, 10, "doc", "record1");
+        index.put("fedcba9876543210", 12, "doc", "record2");
+        try {
+            assertNull(index.get(HASH, 10));
+            assertTrue(DedupIndex.release(properties, "doc", "record1"));
+            assertTrue(DedupIndex.release(properties, "doc", "record1"));
+            assertFalse(DedupIndex.release(properties, "doc", "record2"));
+        } finally {
+            index.remove("fedcba9876543210");
+        }
+    }
+
+    @Test
+    public void deletesFileUnknownToIndex() {
+        assertFalse(DedupIndex.release(properties, "other", "record1"));
+    }
+}
@@ -0,0 +1,79 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import ae.gcg.plugins.sharepoint.fileupload.benchmark.MockSharePointServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Eager uploads claimed by a form submit that puts the file in another folder, e.g. when folders are
+ * partitioned by record id hash and the file was uploaded before the record had an id.
+ */
+public class EagerUploadsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockSharePointServer server;
+    private Map<String, Object> connection;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockSharePointServer();
+
+        connection = new HashMap<>();
+        connection.put("sharepointBaseUrl", server.getBaseUrl());
+        connection.put("accessControlBaseUrl", server.getBaseUrl());
+        connection.put("applicationId", "app");
+        connection.put("tenantName", "tenant");
+        connection.put("clientId", "client");
+        connection.put("clientSecret", "secret");
+        connection.put("refreshToken", "refresh");
+        connection.put("tenantId", "tenant-id");
+        connection.put("siteName", "site");
+
+        file = folder.newFile("report.pdf");
+        Files.write(file.toPath(), new byte[1024]);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        EagerUploads.shutdown();
+        UploadLimiter.shutdown();
+        SharepointAPIHelper.shutdown();
+        SharepointClientRegistry.shutdown();
+        AccessTokenCache.clear();
+        FormDigestCache.clear();
+        FolderCache.clear();
+        CircuitBreaker.clear();
+    }
+
+    @Test
+    public void keepsFileUploadedToSubmitFolder() throws IOException {
+        EagerUploads.start("/tmp/report.pdf", file, "files/1a", connection);
+
+        String uniqueId = SharepointAPIHelper.await(EagerUploads.take("/tmp/report.pdf", "files/1a"));
+        assertEquals("/sites/site/Shared Documents/files/1a/report.pdf", server.getFileUrl(uniqueId));
+    }
+
+    @Test
+    public void movesFileToSubmitFolder() throws IOException {
+        EagerUploads.start("/tmp/report.pdf", file, "files/1a", connection);
+
+        String uniqueId = SharepointAPIHelper.await(EagerUploads.take("/tmp/report.pdf", "files/c7"));
+        assertEquals("/sites/site/Shared Documents/files/c7/report.pdf", server.getFileUrl(uniqueId));
+        assertNull(EagerUploads.take("/tmp/report.pdf", "files/c7"));
+    }
+}
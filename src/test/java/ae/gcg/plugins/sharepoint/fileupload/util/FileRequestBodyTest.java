@@ -0,0 +1,171 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import okhttp3.MediaType;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileRequestBodyTest {
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * Allocation allowed per streamed file whatever its size: the 64 KB buffer, the file channel
+     * and a few okio segments, with headroom for JIT noise. Below the smallest file tested, so
+     * reading a whole file into memory fails even for it.
+     */
+    private static final long ALLOCATION_BOUND = 512 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void streamsSmallFile() throws IOException {
+        assertStreamedInBoundedMemory(createFile("small.bin", MB));
+    }
+
+    @Test
+    public void streamsLargeSparseFile() throws IOException {
+        assertStreamedInBoundedMemory(createFile("large.bin", 256 * MB));
+    }
+
+    @Test
+    public void streamsRangeOfFile() throws IOException {
+        File file = createFile("range.bin", 3 * MB);
+        long offset = MB + 17;
+        long length = MB + 5;
+
+        CountingSink sink = new CountingSink();
+        try (BufferedSink bufferedSink = Okio.buffer(sink)) {
+            new FileRequestBody(file, OCTET_STREAM, offset, length).writeTo(bufferedSink);
+        }
+
+        assertEquals(length, sink.count);
+        assertEquals(checksum(file, offset, length), sink.crc.getValue());
+    }
+
+    @Test(expected = java.io.EOFException.class)
+    public void failsOnFileShorterThanContentLength() throws IOException {
+        File file = createFile("short.bin", MB);
+        try (BufferedSink sink = Okio.buffer(new CountingSink())) {
+            new FileRequestBody(file, OCTET_STREAM, 0, 2 * MB).writeTo(sink);
+        }
+    }
+
+    private void assertStreamedInBoundedMemory(File file) throws IOException {
+        com.sun.management.ThreadMXBean threads = getThreadMXBean();
+        FileRequestBody body = new FileRequestBody(file, OCTET_STREAM);
+        assertEquals(file.length(), body.contentLength());
+
+        // a first pass loads the classes and warms up the okio segment pool
+        write(body);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        CountingSink sink = write(body);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(file.length(), sink.count);
+        assertEquals(checksum(file, 0, file.length()), sink.crc.getValue());
+        assertTrue("Streaming " + file.length() + " bytes allocated " + allocated + " bytes", allocated < ALLOCATION_BOUND);
+    }
+
+    private static CountingSink write(FileRequestBody body) throws IOException {
+        CountingSink sink = new CountingSink();
+        try (BufferedSink bufferedSink = Okio.buffer(sink)) {
+            body.writeTo(bufferedSink);
+        }
+        return sink;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    /**
+     * Creates a sparse file of the given length with random data at its start, middle and end, so
+     * that misplaced or dropped bytes change the checksum.
+     */
+    private File createFile(String name, long length) throws IOException {
+        File file = folder.newFile(name);
+        Random random = new Random(length);
+        byte[] data = new byte[4096];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+            for (long position : new long[]{0, length / 2 - data.length / 2, length - data.length}) {
+                random.nextBytes(data);
+                raf.seek(position);
+                raf.write(data);
+            }
+        }
+        return file;
+    }
+
+    private static long checksum(File file, long offset, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[FileRequestBody.BUFFER_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offset);
+            long remaining = length;
+            while (remaining > 0) {
+                int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Discards what is written, keeping only the byte count and a checksum.
+     */
+    private static class CountingSink implements Sink {
+        private final byte[] buffer = new byte[8192];
+        private final CRC32 crc = new CRC32();
+        private long count = 0;
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            long remaining = byteCount;
+            while (remaining > 0) {
+                int read = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+            count += byteCount;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UploadLimiterTest {
+    @After
+    public void tearDown() {
+        UploadLimiter.shutdown();
+    }
+
+    @Test
+    public void boundsUploadsInFlight() {
+        List<CompletableFuture<String>> started = new ArrayList<>();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(UploadLimiter.submit("tenant", 2, () -> {
+                CompletableFuture<String> upload = new CompletableFuture<>();
+                started.add(upload);
+                return upload;
+            }));
+        }
+        assertEquals(2, started.size());
+
+        started.get(0).complete("a");
+        assertEquals("a", results.get(0).join());
+        assertEquals(3, started.size());
+
+        started.get(1).complete("b");
+        started.get(2).complete("c");
+        started.get(3).complete("d");
+        started.get(4).complete("e");
+        for (CompletableFuture<String> result : results) {
+            assertTrue(result.isDone());
+        }
+    }
+
+    @Test
+    public void startsQueuedUploadsFailingSynchronouslyWithoutRecursion() {
+        CompletableFuture<String> first = new CompletableFuture<>();
+        UploadLimiter.submit("tenant", 1, () -> first);
+
+        AtomicInteger attempts = new AtomicInteger();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            results.add(UploadLimiter.submit("tenant", 1, () -> {
+                attempts.incrementAndGet();
+                throw new IllegalStateException(new FileNotFoundException("missing.pdf"));
+            }));
+        }
+        assertEquals(0, attempts.get());
+
+        // completing the first upload starts the 100000 queued ones, which all fail right away
+        first.complete("a");
+        assertEquals(100000, attempts.get());
+        for (CompletableFuture<String> result : results) {
+            assertTrue(result.isCompletedExceptionally());
+        }
+
+        CompletableFuture<String> last = new CompletableFuture<>();
+        CompletableFuture<String> result = UploadLimiter.submit("tenant", 1, () -> last);
+        last.complete("b");
+        assertEquals("b", result.join());
+    }
+}
@@ -0,0 +1,168 @@
+package ae.gcg.plugins.sharepoint.fileupload.util;
+
+import ae.gcg.plugins.sharepoint.fileupload.benchmark.MockSharePointServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Chunked uploads through an upload session (StartUpload, ContinueUpload, FinishUpload) against
+ * {@link MockSharePointServer}, with 1 MB chunks.
+ */
+public class UploadSessionTest {
+    private static final long MB = 1024 * 1024;
+    private static final long LENGTH = 3 * MB + MB / 2;
+    private static final List<String> OPERATIONS = Arrays.asList(
+            "StartUpload", "ContinueUpload@" + MB, "ContinueUpload@" + 2 * MB, "FinishUpload@" + 3 * MB);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockSharePointServer server;
+    private SharepointAPIHelper helper;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockSharePointServer();
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("sharepointBaseUrl", server.getBaseUrl());
+        properties.put("accessControlBaseUrl", server.getBaseUrl());
+        properties.put("largeFileThreshold", "1");
+        properties.put("chunkSize", "1");
+        properties.put("maxRetries", "2");
+        helper = new SharepointAPIHelper(properties);
+
+        file = folder.newFile("upload.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(LENGTH);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        SharepointAPIHelper.shutdown();
+        SharepointClientRegistry.shutdown();
+        AccessTokenCache.clear();
+        FormDigestCache.clear();
+        CircuitBreaker.clear();
+    }
+
+    @Test
+    public void uploadsInChunks() throws IOException {
+        assertUploaded(upload(), OPERATIONS);
+    }
+
+    @Test
+    public void uploadsInChunksAsync() throws IOException {
+        assertUploaded(uploadAsync(), OPERATIONS);
+    }
+
+    @Test
+    public void resendsFailedContinueUpload() throws IOException {
+        server.withFailingUploadOperation("ContinueUpload", 1, false);
+
+        assertUploaded(upload(), Arrays.asList(
+                "StartUpload", "ContinueUpload@" + MB, "ContinueUpload@" + MB, "ContinueUpload@" + 2 * MB, "FinishUpload@" + 3 * MB));
+    }
+
+    @Test
+    public void resumesAfterContinueUploadCommittedBeforeFailing() throws IOException {
+        server.withFailingUploadOperation("ContinueUpload", 1, true);
+
+        // the chunk sent again is refused, as SharePoint already has it, and the upload goes on after it
+        assertUploaded(upload(), Arrays.asList(
+                "StartUpload", "ContinueUpload@" + MB, "ContinueUpload@" + MB, "ContinueUpload@" + 2 * MB, "FinishUpload@" + 3 * MB));
+    }
+
+    @Test
+    public void resumesAfterContinueUploadCommittedBeforeFailingAsync() throws IOException {
+        server.withFailingUploadOperation("ContinueUpload", 1, true);
+
+        assertUploaded(uploadAsync(), Arrays.asList(
+                "StartUpload", "ContinueUpload@" + MB, "ContinueUpload@" + MB, "ContinueUpload@" + 2 * MB, "FinishUpload@" + 3 * MB));
+    }
+
+    @Test
+    public void resumesAfterStartUploadCommittedBeforeFailing() throws IOException {
+        server.withFailingUploadOperation("StartUpload", 1, true);
+
+        assertUploaded(upload(), Arrays.asList(
+                "StartUpload", "StartUpload", "ContinueUpload@" + MB, "ContinueUpload@" + 2 * MB, "FinishUpload@" + 3 * MB));
+    }
+
+    @Test
+    public void completesAfterFinishUploadCommittedBeforeFailing() throws IOException {
+        server.withFailingUploadOperation("FinishUpload", 1, true);
+
+        assertUploaded(uploadAsync(), Arrays.asList(
+                "StartUpload", "ContinueUpload@" + MB, "ContinueUpload@" + 2 * MB, "FinishUpload@" + 3 * MB, "FinishUpload@" + 3 * MB));
+    }
+
+    @Test
+    public void cancelsSessionWhenRetriesAreExhausted() {
+        server.withFailingUploadOperation("ContinueUpload", 3, false);
+
+        try {
+            upload();
+            fail("The upload should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertCancelled();
+    }
+
+    @Test
+    public void cancelsSessionWhenRetriesAreExhaustedAsync() throws InterruptedException {
+        server.withFailingUploadOperation("ContinueUpload", 3, false);
+
+        try {
+            uploadAsync();
+            fail("The upload should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        // the session is cancelled in the background
+        for (int i = 0; i < 50 && !server.getUploadOperations().contains("CancelUpload"); i++) {
+            Thread.sleep(100);
+        }
+        assertCancelled();
+    }
+
+    private String upload() throws IOException {
+        return helper.uploadFileToSharePoint("app", "tenant", "client", "secret", "refresh", "tenant-id", "site", "folder", file.getName(), file);
+    }
+
+    private String uploadAsync() throws IOException {
+        return SharepointAPIHelper.await(helper.uploadAsync("app", "tenant", "client", "secret", "refresh", "tenant-id", "site", "folder", file.getName(), file));
+    }
+
+    private void assertUploaded(String uniqueId, List<String> operations) {
+        assertEquals(operations, server.getUploadOperations());
+        assertEquals(Long.valueOf(LENGTH), server.getFileLength(uniqueId));
+        assertEquals(0, server.getUploadSessionCount());
+    }
+
+    private void assertCancelled() {
+        List<String> operations = server.getUploadOperations();
+        assertEquals(Arrays.asList("StartUpload", "ContinueUpload@" + MB, "ContinueUpload@" + MB, "ContinueUpload@" + MB, "CancelUpload"), operations);
+        assertEquals(0, server.getUploadSessionCount());
+        assertTrue(server.getFailedCount() >= 3);
+    }
+}